@@ -30,15 +30,17 @@ import com.telly.groundy.annotations.Param;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
-import java.lang.annotation.Annotation;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.LogRecord;
@@ -54,6 +56,7 @@ import javax.lang.model.SourceVersion;
 import javax.lang.model.element.AnnotationMirror;
 import javax.lang.model.element.AnnotationValue;
 import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.element.TypeElement;
@@ -61,14 +64,13 @@ import javax.lang.model.element.VariableElement;
 import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
 import javax.lang.model.util.ElementKindVisitor6;
 import javax.lang.model.util.Types;
 import javax.tools.JavaFileObject;
 
-@SupportedAnnotationTypes({
-    GroundyCodeGen.SUCCESS, GroundyCodeGen.FAILED, GroundyCodeGen.START, GroundyCodeGen.CANCEL,
-    GroundyCodeGen.PROGRESS, GroundyCodeGen.CALLBACK
-})
+// once it runs for a compilation, every round is seen and so all its tasks are found
+@SupportedAnnotationTypes("com.telly.groundy.annotations.*")
 @SupportedSourceVersion(SourceVersion.RELEASE_6)
 public class GroundyCodeGen extends AbstractProcessor {
 
@@ -79,22 +81,56 @@ public class GroundyCodeGen extends AbstractProcessor {
   public static final String CANCEL = "com.telly.groundy.annotations.OnCancel";
   public static final String PROGRESS = "com.telly.groundy.annotations.OnProgress";
   public static final String CALLBACK = "com.telly.groundy.annotations.OnCallback";
+  public static final String KEYS = "com.telly.groundy.annotations.Keys";
+  public static final String ARG = "com.telly.groundy.annotations.Arg";
   public static final String GROUNDY_VERBOSE = "GROUNDY_VERBOSE";
+  public static final String GROUNDY_DISPATCHERS = "GROUNDY_DISPATCHERS";
+  public static final String PACKAGE_PROXY_FACTORY = "GroundyPackageProxies";
+  public static final String DISPATCHER_FACTORY = "GroundyTaskDispatchers";
+  public static final String TASK_CREATOR = "GroundyTaskCreator";
+  public static final String ARGS_SUFFIX = "$$Args";
+  public static final String DISPATCHER_SUFFIX = "$$Dispatcher";
+  public static final String GROUNDY_TASK = "com.telly.groundy.GroundyTask";
+  private static final Set<String> CALLBACK_ANNOTATIONS = new HashSet<String>(
+      Arrays.asList(SUCCESS, FAILED, START, CANCEL, PROGRESS, CALLBACK));
 
   private final Map<HandlerAndTask, Set<ProxyImplContent>> implMap =
       new HashMap<HandlerAndTask, Set<ProxyImplContent>>();
+  private final Map<HandlerAndTask, String> generatedProxies =
+      new HashMap<HandlerAndTask, String>();
+  // proxies not in a package registry yet, and the packages whose registry was already written
+  private final Set<HandlerAndTask> unregisteredProxies = new HashSet<HandlerAndTask>();
+  private final Set<String> proxyRegistryPackages = new HashSet<String>();
+  private final Set<HandlerAndTask> undispatchedProxies = new HashSet<HandlerAndTask>();
+  private final Set<String> dispatcherRegistryPackages = new HashSet<String>();
+  private boolean generatedFilesThisRound;
+  // tasks not in a creator yet, and the packages whose creator was already written
+  private final Map<String, TypeElement> taskElements = new TreeMap<String, TypeElement>();
+  private final Set<String> creatorPackages = new HashSet<String>();
+  private final Set<String> generatedArgs = new HashSet<String>();
   private boolean verboseMode;
+  private boolean dispatchersMode;
 
   @Override
   public boolean process(Set<? extends TypeElement> typeElements, RoundEnvironment env) {
-    if (typeElements.isEmpty()) {
-      return true;
+    if (env.processingOver()) {
+      // registries were generated in previous rounds
+      return false;
     }
 
     String groundyVerbose = System.getenv(GROUNDY_VERBOSE);
     verboseMode = String.valueOf(Boolean.TRUE).equals(groundyVerbose);
+    String groundyDispatchers = System.getenv(GROUNDY_DISPATCHERS);
+    dispatchersMode = String.valueOf(Boolean.TRUE).equals(groundyDispatchers);
+    generatedFilesThisRound = false;
+
+    collectTasks(env.getRootElements());
+    generateArgsHolders(env);
 
     for (TypeElement annotationElement : typeElements) {
+      if (!CALLBACK_ANNOTATIONS.contains(annotationElement.getQualifiedName().toString())) {
+        continue;
+      }
 
       Set<? extends Element> annotatedElements = env.getElementsAnnotatedWith(annotationElement);
       for (Element annotatedElement : annotatedElements) {
@@ -104,6 +140,7 @@ public class GroundyCodeGen extends AbstractProcessor {
 
           // populate the proxy impl map
           ExecutableElement callbackMethod = (ExecutableElement) annotatedElement;
+          verifyParams(annotationElement, callbackMethod);
           processCallback(annotationElement, callbackMethod);
         }
       }
@@ -113,11 +150,289 @@ public class GroundyCodeGen extends AbstractProcessor {
 
     for (Map.Entry<HandlerAndTask, Set<ProxyImplContent>> elementSetEntry : implMap.entrySet()) {
       HandlerAndTask proxyClassName = elementSetEntry.getKey();
+      if (generatedProxies.containsKey(proxyClassName)) {
+        continue;
+      }
       Set<ProxyImplContent> callbacks = elementSetEntry.getValue();
       generateProxy(proxyClassName, callbacks);
     }
 
-    return true;
+    if (!generatedFilesThisRound) {
+      // nothing new will come out of the sources seen so far, so registries are complete. Files
+      // generated in the last round would not be compiled, so this is the latest they can be made
+      generateRegistries();
+    }
+    return false;
+  }
+
+  private void generateRegistries() {
+    if (!unregisteredProxies.isEmpty()) {
+      generateProxyFactories();
+    }
+    if (dispatchersMode && !undispatchedProxies.isEmpty()) {
+      generateDispatchers();
+    }
+    if (!taskElements.isEmpty()) {
+      generateTaskCreators();
+    }
+  }
+
+  /**
+   * Collects the tasks that can be instantiated with a direct constructor call from their own
+   * package: not private, concrete, static if nested and with a non private no-arg constructor.
+   * Tasks of sources without Groundy annotations are not seen, those are created by reflection.
+   */
+  private void collectTasks(Collection<? extends Element> elements) {
+    TypeElement groundyTaskElement = processingEnv.getElementUtils().getTypeElement(GROUNDY_TASK);
+    if (groundyTaskElement == null) {
+      return;
+    }
+
+    Types types = processingEnv.getTypeUtils();
+    TypeMirror groundyTaskType = groundyTaskElement.asType();
+    for (TypeElement typeElement : ElementFilter.typesIn(elements)) {
+      // nested tasks
+      collectTasks(typeElement.getEnclosedElements());
+
+      Set<Modifier> modifiers = typeElement.getModifiers();
+      if (typeElement.getKind() != ElementKind.CLASS
+          || modifiers.contains(Modifier.ABSTRACT)
+          || packageOf(typeElement).length() == 0
+          || !isAccessibleFrom(typeElement, packageOf(typeElement))
+          || (typeElement.getEnclosingElement() instanceof TypeElement
+          && !modifiers.contains(Modifier.STATIC))
+          || !types.isSubtype(types.erasure(typeElement.asType()), groundyTaskType)) {
+        continue;
+      }
+
+      for (ExecutableElement constructor : ElementFilter.constructorsIn(
+          typeElement.getEnclosedElements())) {
+        if (constructor.getParameters().isEmpty()
+            && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+          taskElements.put(binaryName(typeElement), typeElement);
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Generates a TaskCreator per package that instantiates its tasks with direct constructor calls.
+   */
+  private void generateTaskCreators() {
+    Map<String, List<TypeElement>> tasksByPackage = new TreeMap<String, List<TypeElement>>();
+    for (TypeElement taskElement : taskElements.values()) {
+      String taskPackage = packageOf(taskElement);
+      List<TypeElement> tasks = tasksByPackage.get(taskPackage);
+      if (tasks == null) {
+        tasks = new ArrayList<TypeElement>();
+        tasksByPackage.put(taskPackage, tasks);
+      }
+      tasks.add(taskElement);
+    }
+    taskElements.clear();
+
+    for (Map.Entry<String, List<TypeElement>> packageEntry : tasksByPackage.entrySet()) {
+      String taskPackage = packageEntry.getKey();
+      if (creatorPackages.add(taskPackage)) {
+        generateTaskCreator(taskPackage, packageEntry.getValue());
+      } else {
+        noteMissedRegistry(taskPackage + "." + TASK_CREATOR);
+      }
+    }
+  }
+
+  private void generateTaskCreator(String taskPackage, List<TypeElement> tasks) {
+    StringWriter classContent = new StringWriter();
+    JavaWriter javaWriter = new JavaWriter(classContent);
+    try {
+      javaWriter.emitSingleLineComment("auto-generated file; don't modify");
+      javaWriter.emitPackage(taskPackage);
+      javaWriter.emitImports("com.telly.groundy.*");
+
+      javaWriter.beginType(TASK_CREATOR, "class", EnumSet.of(Modifier.PUBLIC, Modifier.FINAL),
+          null, "TaskCreator");
+      javaWriter.beginMethod("GroundyTask", "create", EnumSet.of(Modifier.PUBLIC),
+          "Class<? extends GroundyTask>", "taskType");
+      for (TypeElement taskElement : tasks) {
+        String taskName = taskElement.getQualifiedName().toString();
+        javaWriter.beginControlFlow("if (taskType == " + taskName + ".class)");
+        javaWriter.emitStatement("return new " + taskName + "()");
+        javaWriter.endControlFlow();
+      }
+      javaWriter.emitStatement("return null");
+      javaWriter.endMethod();
+
+      javaWriter.endType();
+      javaWriter.close();
+
+      writeSourceFile(taskPackage + "." + TASK_CREATOR, classContent.toString(),
+          new ArrayList<Element>(tasks));
+    } catch (IOException e) {
+      e.printStackTrace();
+      System.exit(-1);
+    }
+  }
+
+  /**
+   * Groups the fields annotated with {@link com.telly.groundy.annotations.Arg} by task and
+   * generates an args holder for every task that has not been processed in a previous round.
+   */
+  private void generateArgsHolders(RoundEnvironment env) {
+    TypeElement argElement = processingEnv.getElementUtils().getTypeElement(ARG);
+    if (argElement == null) {
+      return;
+    }
+
+    Map<TypeElement, List<VariableElement>> argFields =
+        new LinkedHashMap<TypeElement, List<VariableElement>>();
+    for (VariableElement field : ElementFilter.fieldsIn(env.getElementsAnnotatedWith(argElement))) {
+      TypeElement taskElement = (TypeElement) field.getEnclosingElement();
+      List<VariableElement> fields = argFields.get(taskElement);
+      if (fields == null) {
+        fields = new ArrayList<VariableElement>();
+        argFields.put(taskElement, fields);
+      }
+      fields.add(field);
+    }
+
+    for (Map.Entry<TypeElement, List<VariableElement>> entry : argFields.entrySet()) {
+      TypeElement taskElement = entry.getKey();
+      if (generatedArgs.add(binaryName(taskElement))) {
+        generateArgsHolder(taskElement, entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Generates the args holder of a task: a setter per field, a method that assigns them to the
+   * task and a parcel encoding that writes the values in declaration order, without keys.
+   */
+  private void generateArgsHolder(TypeElement taskElement, List<VariableElement> fields) {
+    TypeElement groundyTaskElement = processingEnv.getElementUtils().getTypeElement(GROUNDY_TASK);
+    Types types = processingEnv.getTypeUtils();
+    String taskPackage = packageOf(taskElement);
+    if (taskPackage.length() == 0
+        || !isAccessibleFrom(taskElement, taskPackage)
+        || !types.isSubtype(types.erasure(taskElement.asType()), groundyTaskElement.asType())) {
+      LOGGER.info("@Arg fields must be declared by a non private task outside the default "
+          + "package: " + taskElement);
+      System.exit(-1);
+    }
+
+    TypeElement parcelableElement =
+        processingEnv.getElementUtils().getTypeElement("android.os.Parcelable");
+    List<ArgField> argFields = new ArrayList<ArgField>();
+    for (VariableElement field : fields) {
+      Set<Modifier> modifiers = field.getModifiers();
+      if (modifiers.contains(Modifier.PRIVATE)
+          || modifiers.contains(Modifier.STATIC)
+          || modifiers.contains(Modifier.FINAL)) {
+        LOGGER.info("@Arg fields can't be private, static or final: " + taskElement + "."
+            + field);
+        System.exit(-1);
+      }
+
+      TypeMirror fieldType = field.asType();
+      String type = fieldType.toString();
+      String[] parcelCalls = PARCEL_CALLS.get(type);
+      if (parcelCalls == null && parcelableElement != null
+          && types.isAssignable(fieldType, parcelableElement.asType())) {
+        parcelCalls = new String[] {
+            "writeParcelable(%s, flags)",
+            "(" + type + ") source.readParcelable(Creator.class.getClassLoader())"
+        };
+      }
+      if (parcelCalls == null) {
+        LOGGER.info("Type " + type + " is not supported by @Arg fields: " + taskElement + "."
+            + field);
+        System.exit(-1);
+      }
+      argFields.add(new ArgField(field.getSimpleName().toString(), type, parcelCalls));
+    }
+
+    String taskName = taskElement.getQualifiedName().toString();
+    String argsClassName = binaryName(taskElement).substring(taskPackage.length() + 1)
+        + ARGS_SUFFIX;
+
+    StringWriter classContent = new StringWriter();
+    JavaWriter javaWriter = new JavaWriter(classContent);
+    try {
+      javaWriter.emitSingleLineComment("auto-generated file; don't modify");
+      javaWriter.emitPackage(taskPackage);
+      javaWriter.emitImports("android.os.Parcel", "android.os.Parcelable",
+          "com.telly.groundy.GroundyTask", "com.telly.groundy.TaskArgs");
+
+      javaWriter.beginType(argsClassName, "class", EnumSet.of(Modifier.PUBLIC, Modifier.FINAL),
+          null, "TaskArgs");
+      javaWriter.emitField("Parcelable.Creator<" + argsClassName + ">", "CREATOR",
+          EnumSet.of(Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL), "new Creator()");
+      for (ArgField argField : argFields) {
+        // package-private so the creator assigns them without synthetic accessors
+        javaWriter.emitField(argField.type, argField.name, EnumSet.noneOf(Modifier.class));
+      }
+
+      for (ArgField argField : argFields) {
+        javaWriter.beginMethod(argsClassName, argField.name, EnumSet.of(Modifier.PUBLIC),
+            argField.type, argField.name);
+        javaWriter.emitStatement("this." + argField.name + " = " + argField.name);
+        javaWriter.emitStatement("return this");
+        javaWriter.endMethod();
+      }
+
+      javaWriter.beginMethod("void", "injectInto", EnumSet.of(Modifier.PUBLIC), "GroundyTask",
+          "task");
+      javaWriter.emitStatement(taskName + " target = (" + taskName + ") task");
+      for (ArgField argField : argFields) {
+        javaWriter.emitStatement("target." + argField.name + " = " + argField.name);
+      }
+      javaWriter.endMethod();
+
+      javaWriter.beginMethod("void", "clearFrom", EnumSet.of(Modifier.PUBLIC), "GroundyTask",
+          "task");
+      javaWriter.emitStatement(taskName + " target = (" + taskName + ") task");
+      for (ArgField argField : argFields) {
+        javaWriter.emitStatement("target." + argField.name + " = " + fieldDefault(argField.type));
+      }
+      javaWriter.endMethod();
+
+      javaWriter.beginMethod("int", "describeContents", EnumSet.of(Modifier.PUBLIC));
+      javaWriter.emitStatement("return 0");
+      javaWriter.endMethod();
+
+      javaWriter.beginMethod("void", "writeToParcel", EnumSet.of(Modifier.PUBLIC), "Parcel",
+          "dest", "int", "flags");
+      for (ArgField argField : argFields) {
+        javaWriter.emitStatement("dest." + String.format(argField.parcelCalls[0], argField.name));
+      }
+      javaWriter.endMethod();
+
+      javaWriter.beginType("Creator", "class", EnumSet.of(Modifier.PRIVATE, Modifier.STATIC,
+          Modifier.FINAL), null, "Parcelable.Creator<" + argsClassName + ">");
+      javaWriter.beginMethod(argsClassName, "createFromParcel", EnumSet.of(Modifier.PUBLIC),
+          "Parcel", "source");
+      javaWriter.emitStatement(argsClassName + " args = new " + argsClassName + "()");
+      for (ArgField argField : argFields) {
+        javaWriter.emitStatement("args." + argField.name + " = " + argField.parcelCalls[1]);
+      }
+      javaWriter.emitStatement("return args");
+      javaWriter.endMethod();
+
+      javaWriter.beginMethod(argsClassName + "[]", "newArray", EnumSet.of(Modifier.PUBLIC),
+          "int", "size");
+      javaWriter.emitStatement("return new " + argsClassName + "[size]");
+      javaWriter.endMethod();
+      javaWriter.endType();
+
+      javaWriter.endType();
+      javaWriter.close();
+
+      writeSourceFile(taskPackage + "." + argsClassName, classContent.toString(),
+          new ArrayList<Element>(fields));
+    } catch (IOException e) {
+      e.printStackTrace();
+      System.exit(-1);
+    }
   }
 
   /**
@@ -199,13 +514,20 @@ public class GroundyCodeGen extends AbstractProcessor {
   }
 
   private void processCallback(Element annotationElement, ExecutableElement callbackMethod) {
-    // ignore inner classes and non public classes
+    // proxies live in the package of their handlers, so only private classes are ignored
     Element handlerElement = callbackMethod.getEnclosingElement();
     LOGGER.info("Processing callback element: " + handlerElement);
 
-    if (!handlerElement.getModifiers().contains(Modifier.PUBLIC)) {
-      LOGGER.info(
-          handlerElement + " is not public. Reflection will be used and it can slow things down.");
+    String handlerPackage = packageOf(handlerElement);
+    if (handlerPackage.length() == 0) {
+      LOGGER.info(handlerElement
+          + " is in the default package. Reflection will be used and it can slow things down.");
+      return;
+    }
+
+    if (!isAccessibleFrom(handlerElement, handlerPackage)) {
+      LOGGER.info(handlerElement
+          + " is private. Reflection will be used and it can slow things down.");
       return;
     }
 
@@ -246,6 +568,8 @@ public class GroundyCodeGen extends AbstractProcessor {
       proxyImplContent.fullTargetClassName = handlerElement.toString();
       proxyImplContent.callbackName = callbackName != null ? callbackName.toString() : null;
       proxyImplContent.originatingElement = annotationElement;
+      // verifyParams already failed the build if the params do not match the declared keys
+      proxyImplContent.keyTypes = getKeyTypes(taskElement, proxyImplContent.paramNames);
 
       LOGGER.info("Adding proxy implementation: " + proxyImplContent);
 
@@ -253,6 +577,136 @@ public class GroundyCodeGen extends AbstractProcessor {
     }
   }
 
+  /**
+   * Makes sure the params of the callback match the keys declared with @Keys by the tasks it
+   * handles. Tasks that don't declare keys are not verified.
+   */
+  private void verifyParams(Element annotationElement, ExecutableElement callbackMethod) {
+    //noinspection unchecked
+    Collection<AnnotationValue> tasksList = (Collection<AnnotationValue>)
+        getAnnotationValue(callbackMethod, annotationElement, "value");
+    if (tasksList == null) {
+      return;
+    }
+
+    String methodFullInfo = callbackMethod.getEnclosingElement() + "#" + callbackMethod;
+    Types types = processingEnv.getTypeUtils();
+    for (AnnotationValue attribute : tasksList) {
+      if (!(attribute.getValue() instanceof DeclaredType)) {
+        continue;
+      }
+      Element taskElement = ((DeclaredType) attribute.getValue()).asElement();
+      Map<String, TypeMirror> declaredKeys = getDeclaredKeys(taskElement);
+      if (declaredKeys == null) {
+        continue;
+      }
+
+      for (VariableElement param : callbackMethod.getParameters()) {
+        Param paramAnnotation = param.getAnnotation(Param.class);
+        if (paramAnnotation == null) {
+          // reported by getParamNames
+          continue;
+        }
+
+        String key = paramAnnotation.value();
+        TypeMirror keyType = declaredKeys.get(key);
+        if (keyType == null) {
+          keyType = getBuiltInKeyType(key);
+        }
+        if (keyType == null) {
+          LOGGER.info(methodFullInfo + ": " + taskElement + " does not declare the key " + key);
+          System.exit(-1);
+        }
+
+        // same conversions Method#invoke performs: unboxing, boxing and widening
+        if (!types.isAssignable(keyType, param.asType())) {
+          LOGGER.info(methodFullInfo + ": " + key + " is " + keyType + " in " + taskElement
+              + " but the parameter is " + param.asType());
+          System.exit(-1);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the types of the keys the params read, in order, or null if the task does not
+   * declare its keys
+   */
+  private List<String> getKeyTypes(Element taskElement, List<NameAndType> params) {
+    Map<String, TypeMirror> declaredKeys = getDeclaredKeys(taskElement);
+    if (declaredKeys == null) {
+      return null;
+    }
+    List<String> keyTypes = new ArrayList<String>();
+    for (NameAndType param : params) {
+      TypeMirror keyType = declaredKeys.get(param.name);
+      if (keyType == null) {
+        keyType = getBuiltInKeyType(param.name);
+      }
+      keyTypes.add(keyType.toString());
+    }
+    return keyTypes;
+  }
+
+  /**
+   * @return keys declared with @Keys by the task and its super classes, or null if none of them
+   * declares keys
+   */
+  private Map<String, TypeMirror> getDeclaredKeys(Element taskElement) {
+    Map<String, TypeMirror> declaredKeys = null;
+    Element keysElement = processingEnv.getElementUtils().getTypeElement(KEYS);
+    Types types = processingEnv.getTypeUtils();
+    // walk from the task up, so that keys declared by subclasses win
+    for (Element task = taskElement; task instanceof TypeElement && !isObjectElement(task);
+        task = types.asElement(((TypeElement) task).getSuperclass())) {
+      //noinspection unchecked
+      Collection<AnnotationValue> keys = (Collection<AnnotationValue>)
+          getAnnotationValue(task, keysElement, "value");
+      if (keys == null) {
+        continue;
+      }
+
+      if (declaredKeys == null) {
+        declaredKeys = new HashMap<String, TypeMirror>();
+      }
+      for (AnnotationValue keyValue : keys) {
+        AnnotationMirror keyMirror = (AnnotationMirror) keyValue.getValue();
+        String name = null;
+        TypeMirror type = null;
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : keyMirror
+            .getElementValues().entrySet()) {
+          String attributeName = entry.getKey().getSimpleName().toString();
+          if ("name".equals(attributeName)) {
+            name = (String) entry.getValue().getValue();
+          } else if ("type".equals(attributeName)) {
+            type = (TypeMirror) entry.getValue().getValue();
+          }
+        }
+        if (name != null && type != null && !declaredKeys.containsKey(name)) {
+          declaredKeys.put(name, type);
+        }
+      }
+    }
+    return declaredKeys;
+  }
+
+  private TypeMirror getBuiltInKeyType(String key) {
+    Types types = processingEnv.getTypeUtils();
+    if (Groundy.PROGRESS.equals(key) || Groundy.CANCEL_REASON.equals(key)) {
+      return types.getPrimitiveType(TypeKind.INT);
+    } else if (Groundy.TASK_ID.equals(key)) {
+      return types.getPrimitiveType(TypeKind.LONG);
+    } else if (Groundy.CRASH_MESSAGE.equals(key)) {
+      return processingEnv.getElementUtils().getTypeElement("java.lang.String").asType();
+    } else if (Groundy.ORIGINAL_PARAMS.equals(key)) {
+      return processingEnv.getElementUtils().getTypeElement("android.os.Bundle").asType();
+    } else if (Groundy.TASK_IMPLEMENTATION.equals(key)) {
+      return types.erasure(
+          processingEnv.getElementUtils().getTypeElement("java.lang.Class").asType());
+    }
+    return null;
+  }
+
   public class SuperClassVisitor extends ElementKindVisitor6<Void, Set<Element>> {
     @Override
     public Void visitType(TypeElement typeElement, Set<Element> elements) {
@@ -310,105 +764,535 @@ public class GroundyCodeGen extends AbstractProcessor {
         LOGGER.info("Generating source code for " + callbacksArr[0].fullTargetClassName + ":");
       }
 
+      String handlerPackage = packageOf(handlerAndTask.handler);
       javaWriter.emitSingleLineComment("auto-generated file; don't modify");
-      javaWriter.emitPackage("com.telly.groundy.generated");
-      javaWriter.emitImports("android.os.Bundle", Annotation.class.getName(),
-          "com.telly.groundy.*");
+      javaWriter.emitPackage(handlerPackage);
+      javaWriter.emitImports("android.os.Bundle", "com.telly.groundy.*");
 
-      String proxyClassName = handlerAndTask.generateClassName();
-      javaWriter.beginType(proxyClassName, "class", EnumSet.of(Modifier.PUBLIC), null,
+      String handlerBinaryName = binaryName(handlerAndTask.handler);
+      String handlerName = handlerBinaryName.substring(handlerPackage.length() + 1);
+      String proxyClassName = handlerAndTask.generateClassName(handlerName);
+      javaWriter.beginType(proxyClassName, "class", EnumSet.of(Modifier.FINAL), null,
           "ResultProxy");
 
       javaWriter.beginMethod("void", "apply", EnumSet.of(Modifier.PUBLIC), "Object", "target",
-          "Class<? extends Annotation>", "callbackAnnotation", "Bundle", "resultData");
+          "int", "callbackType", "Bundle", "resultData");
 
       // make sure the target and result is OK
-      String fullTargetClassName = callbacks.iterator().next().fullTargetClassName;
+      String fullTargetClassName = handlerAndTask.handler.toString();
       String targetIsValid = "!(target instanceof " + fullTargetClassName + ")";
       String resultIsValid = "resultData == null";
       javaWriter.beginControlFlow("if(" + targetIsValid + " || " + resultIsValid + ")");
       javaWriter.emitStatement("return");
       javaWriter.endControlFlow();
 
-      boolean alreadySetCallbackName = false;
-
-
       List<Element> originatingElements = new ArrayList<Element>();
       for (ProxyImplContent proxyImpl : callbacks) {
         originatingElements.add(proxyImpl.originatingElement);
-        if (verboseMode) {
-          LOGGER.info("Adding annotation proxy: " + proxyImpl.annotation);
-        }
-        String shouldHandleAnnotation = "callbackAnnotation == " + proxyImpl.annotation + ".class";
-        if (proxyImpl.callbackName != null) {
-          if (!alreadySetCallbackName) {
-            javaWriter.emitStatement("String callbackName = "
-                + "resultData.getString(\"" + Groundy.KEY_CALLBACK_NAME + "\")");
-            alreadySetCallbackName = true;
-          }
-          String callbackNameCheck = '\"' + proxyImpl.callbackName + "\".equals(callbackName)";
-          shouldHandleAnnotation += " && " + callbackNameCheck;
-        }
-        javaWriter.beginControlFlow("if (" + shouldHandleAnnotation + ")");
+      }
+      emitCallbackTypeSwitch(javaWriter, callbacks, fullTargetClassName);
 
-        StringBuilder invocation = new StringBuilder();
-        String separator = "";
-        for (int i = 0; i < proxyImpl.paramNames.size(); i++) {
-          NameAndType nameAndType = proxyImpl.paramNames.get(i);
-          String paramInsertionName = "groundyCallbackParam" + i;
+      javaWriter.endMethod();
+      javaWriter.endType();
+      javaWriter.close();
 
-          String valName = "groundyValue" + i;
-          String assignation = "resultData.get(\"" + nameAndType.name + "\")";
-          javaWriter.emitStatement("Object " + valName + " = " + assignation);
+      writeSourceFile(handlerPackage + "." + proxyClassName, classContent.toString(),
+          originatingElements);
+      generatedProxies.put(handlerAndTask, proxyClassName);
+      unregisteredProxies.add(handlerAndTask);
+      undispatchedProxies.add(handlerAndTask);
+    } catch (IOException e) {
+      e.printStackTrace();
+      System.exit(-1);
+    }
+  }
 
-          javaWriter.beginControlFlow("if(" + valName + " == null)");
-          javaWriter.emitStatement(valName + " = " + defaultValue(nameAndType.type));
-          javaWriter.endControlFlow();
+  /**
+   * Emits the body that routes a result to the callbacks of a handler. Expects target,
+   * callbackType and resultData to be in scope.
+   */
+  private void emitCallbackTypeSwitch(JavaWriter javaWriter, Set<ProxyImplContent> callbacks,
+      String fullTargetClassName) throws IOException {
+    // group callbacks by type, sorted so that the output is stable between builds
+    Map<String, List<ProxyImplContent>> callbacksByType =
+        new TreeMap<String, List<ProxyImplContent>>();
+    for (ProxyImplContent proxyImpl : callbacks) {
+      if (verboseMode) {
+        LOGGER.info("Adding annotation proxy: " + proxyImpl.annotation);
+      }
+      String callbackType = CALLBACK_TYPES.get(proxyImpl.annotation);
+      List<ProxyImplContent> typeCallbacks = callbacksByType.get(callbackType);
+      if (typeCallbacks == null) {
+        typeCallbacks = new ArrayList<ProxyImplContent>();
+        callbacksByType.put(callbackType, typeCallbacks);
+      }
+      typeCallbacks.add(proxyImpl);
+    }
+
+    javaWriter.beginControlFlow("switch (callbackType)");
+    for (Map.Entry<String, List<ProxyImplContent>> typeEntry : callbacksByType.entrySet()) {
+      javaWriter.beginControlFlow("case CallbackTypes." + typeEntry.getKey() + ":");
+      List<ProxyImplContent> typeCallbacks = typeEntry.getValue();
+      if (CALLBACK.equals(typeCallbacks.get(0).annotation)) {
+        emitCallbackNameSwitch(javaWriter, typeCallbacks, fullTargetClassName);
+      } else {
+        emitInvocation(javaWriter, typeCallbacks.get(0), fullTargetClassName);
+      }
+      javaWriter.emitStatement("return");
+      javaWriter.endControlFlow();
+    }
+    javaWriter.endControlFlow();
+  }
+
+  /**
+   * Dispatches @OnCallback results switching on the hash code of their names, which is known at
+   * compile time, then making sure the name actually matches.
+   */
+  private static void emitCallbackNameSwitch(JavaWriter javaWriter,
+      List<ProxyImplContent> callbacks, String fullTargetClassName) throws IOException {
+    Map<Integer, List<ProxyImplContent>> callbacksByHash =
+        new TreeMap<Integer, List<ProxyImplContent>>();
+    for (ProxyImplContent proxyImpl : callbacks) {
+      Integer hash = proxyImpl.callbackName.hashCode();
+      List<ProxyImplContent> sameHash = callbacksByHash.get(hash);
+      if (sameHash == null) {
+        sameHash = new ArrayList<ProxyImplContent>();
+        callbacksByHash.put(hash, sameHash);
+      }
+      sameHash.add(proxyImpl);
+    }
 
-          String declaration = nameAndType.type + " " + paramInsertionName;
-          String casting = " = (" + cleanCasting(nameAndType.type) + ") ";
-          javaWriter.emitStatement(declaration + casting + valName);
+    String keyName = JavaWriter.stringLiteral(Groundy.KEY_CALLBACK_NAME);
+    javaWriter.emitStatement("String callbackName = resultData.getString(" + keyName + ")");
+    javaWriter.beginControlFlow("if (callbackName == null)");
+    javaWriter.emitStatement("return");
+    javaWriter.endControlFlow();
+
+    javaWriter.beginControlFlow("switch (callbackName.hashCode())");
+    for (Map.Entry<Integer, List<ProxyImplContent>> hashEntry : callbacksByHash.entrySet()) {
+      javaWriter.beginControlFlow("case " + hashEntry.getKey() + ":");
+      for (ProxyImplContent proxyImpl : hashEntry.getValue()) {
+        String name = JavaWriter.stringLiteral(proxyImpl.callbackName);
+        javaWriter.beginControlFlow("if (" + name + ".equals(callbackName))");
+        emitInvocation(javaWriter, proxyImpl, fullTargetClassName);
+        javaWriter.emitStatement("return");
+        javaWriter.endControlFlow();
+      }
+      javaWriter.emitStatement("return");
+      javaWriter.endControlFlow();
+    }
+    javaWriter.endControlFlow();
+  }
 
-          invocation.append(separator).append(paramInsertionName);
-          separator = ", ";
+  private static void emitInvocation(JavaWriter javaWriter, ProxyImplContent proxyImpl,
+      String fullTargetClassName) throws IOException {
+    StringBuilder invocation = new StringBuilder();
+    String separator = "";
+    for (int i = 0; i < proxyImpl.paramNames.size(); i++) {
+      NameAndType nameAndType = proxyImpl.paramNames.get(i);
+      String paramInsertionName = "groundyCallbackParam" + i;
+      javaWriter.emitStatement(nameAndType.type + " " + paramInsertionName);
+      invocation.append(separator).append(paramInsertionName);
+      separator = ", ";
+    }
 
-          javaWriter.emitEmptyLine();
-        }
+    if (proxyImpl.keyTypes != null) {
+      // the task declares the types of its keys: read them with the typed getters
+      javaWriter.beginControlFlow("if (GroundyManager.isTrustedDispatch())");
+      for (int i = 0; i < proxyImpl.paramNames.size(); i++) {
+        NameAndType nameAndType = proxyImpl.paramNames.get(i);
+        javaWriter.emitStatement("groundyCallbackParam" + i + " = "
+            + typedRead(nameAndType, proxyImpl.keyTypes.get(i)));
+      }
+      javaWriter.nextControlFlow("else");
+    }
+    for (int i = 0; i < proxyImpl.paramNames.size(); i++) {
+      emitCheckedRead(javaWriter, proxyImpl, fullTargetClassName, i);
+    }
+    if (proxyImpl.keyTypes != null) {
+      javaWriter.endControlFlow();
+    }
 
-        String castTarget = "((" + fullTargetClassName + ")target).";
-        String invokeCallback = proxyImpl.methodName + "(" + invocation + ")";
-        javaWriter.emitStatement(castTarget + invokeCallback);
+    String castTarget = "((" + fullTargetClassName + ")target).";
+    String invokeCallback = proxyImpl.methodName + "(" + invocation + ")";
+    javaWriter.emitStatement(castTarget + invokeCallback);
+  }
 
-        javaWriter.emitStatement("return");
+  /**
+   * @param param the param to read
+   * @param keyType type the task declares for the key of the param; values are assignable to the
+   * param
+   * @return an expression reading the value of the param with the typed getter of its key
+   */
+  private static String typedRead(NameAndType param, String keyType) {
+    String key = JavaWriter.stringLiteral(param.name);
+    String getter;
+    if (PRIMITIVES.containsKey(param.type)) {
+      // primitive getters return the default value of missing keys, the assignment widens them
+      String primitive = PRIMITIVES.containsKey(keyType) ? keyType
+          : UNBOXED.get(keyType.replace("java.lang.", ""));
+      getter = "get" + Character.toUpperCase(primitive.charAt(0)) + primitive.substring(1);
+    } else {
+      // boxed params keep getting null for missing keys
+      getter = TYPED_GETTERS.get(keyType);
+    }
+    if (getter != null) {
+      return "resultData." + getter + "(" + key + ")";
+    }
+    return "(" + cleanCasting(param.type) + ") resultData.get(" + key + ")";
+  }
+
+  /** Reads a param checking its value against the type of the param. */
+  private static void emitCheckedRead(JavaWriter javaWriter, ProxyImplContent proxyImpl,
+      String fullTargetClassName, int i) throws IOException {
+    NameAndType nameAndType = proxyImpl.paramNames.get(i);
+    String key = JavaWriter.stringLiteral(nameAndType.name);
+    // same rules as the reflection proxy: exact types plus lossless numeric widenings
+    String valName = "groundyValue" + i;
+    String checkedType = erasure(cleanCasting(nameAndType.type));
+    javaWriter.emitStatement("Object " + valName + " = resultData.get(" + key + ")");
+    StringBuilder mismatch = new StringBuilder();
+    mismatch.append(valName).append(" != null && !(").append(valName).append(" instanceof ")
+        .append(checkedType).append(")");
+    String[] widenedTypes = WIDENED_FROM.get(checkedType);
+    if (widenedTypes != null) {
+      for (String widenedType : widenedTypes) {
+        mismatch.append(" && !(").append(valName).append(" instanceof ").append(widenedType)
+            .append(")");
+      }
+    }
+    javaWriter.beginControlFlow("if (" + mismatch + ")");
+    String expected = PRIMITIVES.containsKey(nameAndType.type) ? nameAndType.type
+        : checkedType.substring(checkedType.lastIndexOf('.') + 1);
+    javaWriter.emitStatement("throw new RuntimeException("
+        + JavaWriter.stringLiteral(nameAndType.name + " parameter is ") + " + " + valName
+        + ".getClass().getSimpleName() + "
+        + JavaWriter.stringLiteral(" but the method (" + fullTargetClassName + "."
+        + proxyImpl.methodName + ") expects " + expected) + ")");
+    javaWriter.endControlFlow();
+
+    String value;
+    if (widenedTypes != null) {
+      value = "((Number) " + valName + ")." + WIDENING_CALLS.get(checkedType) + "()";
+    } else {
+      value = "(" + cleanCasting(nameAndType.type) + ") " + valName;
+    }
+    javaWriter.emitStatement("groundyCallbackParam" + i + " = " + valName + " == null ? "
+        + defaultValue(nameAndType.type) + " : " + value);
+  }
+
+  /**
+   * Generates a ProxyFactory per package that knows the proxies generated in it, so that the
+   * runtime finds the proxies of a handler by looking up a single class in its package.
+   */
+  private void generateProxyFactories() {
+    // group proxies by package and handler, sorted so that the output is stable between builds
+    Map<String, Map<String, Map<String, HandlerAndTask>>> proxiesByPackage =
+        new TreeMap<String, Map<String, Map<String, HandlerAndTask>>>();
+    for (HandlerAndTask handlerAndTask : unregisteredProxies) {
+      String handlerPackage = packageOf(handlerAndTask.handler);
+      Map<String, Map<String, HandlerAndTask>> proxiesByHandler =
+          proxiesByPackage.get(handlerPackage);
+      if (proxiesByHandler == null) {
+        proxiesByHandler = new TreeMap<String, Map<String, HandlerAndTask>>();
+        proxiesByPackage.put(handlerPackage, proxiesByHandler);
+      }
+
+      String handlerName = handlerAndTask.handler.toString();
+      Map<String, HandlerAndTask> proxiesByTask = proxiesByHandler.get(handlerName);
+      if (proxiesByTask == null) {
+        proxiesByTask = new TreeMap<String, HandlerAndTask>();
+        proxiesByHandler.put(handlerName, proxiesByTask);
+      }
+      proxiesByTask.put(handlerAndTask.task.toString(), handlerAndTask);
+    }
+
+    unregisteredProxies.clear();
+
+    for (Map.Entry<String, Map<String, Map<String, HandlerAndTask>>> packageEntry :
+        proxiesByPackage.entrySet()) {
+      String handlerPackage = packageEntry.getKey();
+      if (proxyRegistryPackages.add(handlerPackage)) {
+        generatePackageProxyFactory(handlerPackage, packageEntry.getValue());
+      } else {
+        noteMissedRegistry(handlerPackage + "." + PACKAGE_PROXY_FACTORY);
+      }
+    }
+  }
+
+  /**
+   * Reports types found in sources generated after the registry of their package, e.g. by other
+   * processors. They work all the same, just through reflection.
+   */
+  private void noteMissedRegistry(String registryName) {
+    LOGGER.info(registryName + " was already generated, so types found afterwards in its package "
+        + "will be resolved through reflection");
+  }
+
+  private void generatePackageProxyFactory(String handlerPackage,
+      Map<String, Map<String, HandlerAndTask>> proxiesByHandler) {
+    List<Element> originatingElements = new ArrayList<Element>();
+    StringWriter classContent = new StringWriter();
+    JavaWriter javaWriter = new JavaWriter(classContent);
+    try {
+      javaWriter.emitSingleLineComment("auto-generated file; don't modify");
+      javaWriter.emitPackage(handlerPackage);
+      javaWriter.emitImports("com.telly.groundy.*");
+
+      javaWriter.beginType(PACKAGE_PROXY_FACTORY, "class",
+          EnumSet.of(Modifier.PUBLIC, Modifier.FINAL), null, "ProxyFactory");
+      javaWriter.beginMethod("ResultProxy", "create", EnumSet.of(Modifier.PUBLIC), "Class<?>",
+          "handlerType", "Class<? extends GroundyTask>", "taskType");
+
+      for (Map.Entry<String, Map<String, HandlerAndTask>> handlerEntry : proxiesByHandler
+          .entrySet()) {
+        javaWriter.beginControlFlow("if (handlerType == " + handlerEntry.getKey() + ".class)");
+        for (HandlerAndTask handlerAndTask : handlerEntry.getValue().values()) {
+          originatingElements.add(handlerAndTask.handler);
+          String taskCheck = taskTypeCheck(handlerAndTask.task, handlerPackage);
+          javaWriter.beginControlFlow("if (" + taskCheck + ")");
+          javaWriter.emitStatement("return new " + generatedProxies.get(handlerAndTask) + "()");
+          javaWriter.endControlFlow();
+        }
+        javaWriter.emitStatement("return null");
         javaWriter.endControlFlow();
       }
+      javaWriter.emitStatement("return null");
 
       javaWriter.endMethod();
       javaWriter.endType();
       javaWriter.close();
 
-      String fileContent = classContent.toString();
+      writeSourceFile(handlerPackage + "." + PACKAGE_PROXY_FACTORY, classContent.toString(),
+          originatingElements);
+    } catch (IOException e) {
+      e.printStackTrace();
+      System.exit(-1);
+    }
+  }
 
-      if (verboseMode) {
-        LOGGER.info("Generated file: " + proxyClassName + ".java");
-        System.out.println(fileContent);
-      }
-
-      Filer filer = processingEnv.getFiler();
-      Element[] elements = originatingElements.toArray(new Element[originatingElements.size()]);
-      String fullClassName = "com.telly.groundy.generated." + proxyClassName;
-      JavaFileObject sourceFile = filer.createSourceFile(fullClassName, elements);
-      Writer writer = sourceFile.openWriter();
-      writer.write(fileContent);
-      writer.flush();
-      writer.close();
+  /**
+   * Generates a TaskDispatcher per task, which routes results to every handler type of the task
+   * that can be referenced from the package of the task, plus a factory per package for them.
+   */
+  private void generateDispatchers() {
+    Set<String> taskPackages = new HashSet<String>();
+    for (HandlerAndTask handlerAndTask : undispatchedProxies) {
+      taskPackages.add(packageOf(handlerAndTask.task));
+    }
+    undispatchedProxies.clear();
+
+    // group handlers by package and task, sorted so that the output is stable between builds
+    Map<String, Map<String, Map<String, HandlerAndTask>>> handlersByPackage =
+        new TreeMap<String, Map<String, Map<String, HandlerAndTask>>>();
+    for (HandlerAndTask handlerAndTask : generatedProxies.keySet()) {
+      String taskPackage = packageOf(handlerAndTask.task);
+      if (taskPackage.length() == 0 || !taskPackages.contains(taskPackage)
+          || !isAccessibleFrom(handlerAndTask.handler, taskPackage)) {
+        // results for this handler will go through its proxy
+        continue;
+      }
+      Map<String, Map<String, HandlerAndTask>> handlersByTask =
+          handlersByPackage.get(taskPackage);
+      if (handlersByTask == null) {
+        handlersByTask = new TreeMap<String, Map<String, HandlerAndTask>>();
+        handlersByPackage.put(taskPackage, handlersByTask);
+      }
+      String taskName = binaryName(handlerAndTask.task);
+      Map<String, HandlerAndTask> handlers = handlersByTask.get(taskName);
+      if (handlers == null) {
+        handlers = new TreeMap<String, HandlerAndTask>();
+        handlersByTask.put(taskName, handlers);
+      }
+      handlers.put(handlerAndTask.handler.toString(), handlerAndTask);
+    }
+
+    for (Map.Entry<String, Map<String, Map<String, HandlerAndTask>>> packageEntry :
+        handlersByPackage.entrySet()) {
+      String taskPackage = packageEntry.getKey();
+      if (dispatcherRegistryPackages.add(taskPackage)) {
+        generatePackageDispatchers(taskPackage, packageEntry.getValue());
+      } else {
+        noteMissedRegistry(taskPackage + "." + DISPATCHER_FACTORY);
+      }
+    }
+  }
+
+  private void generatePackageDispatchers(String taskPackage,
+      Map<String, Map<String, HandlerAndTask>> handlersByTask) {
+    Map<Element, String> dispatchers = new LinkedHashMap<Element, String>();
+    for (Map.Entry<String, Map<String, HandlerAndTask>> taskEntry : handlersByTask.entrySet()) {
+      String taskName = taskEntry.getKey().substring(taskPackage.length() + 1);
+      String dispatcherClassName = taskName + DISPATCHER_SUFFIX;
+      Collection<HandlerAndTask> handlers = taskEntry.getValue().values();
+      generateDispatcher(taskPackage, dispatcherClassName, handlers);
+      dispatchers.put(handlers.iterator().next().task, dispatcherClassName);
+    }
+
+    StringWriter classContent = new StringWriter();
+    JavaWriter javaWriter = new JavaWriter(classContent);
+    try {
+      javaWriter.emitSingleLineComment("auto-generated file; don't modify");
+      javaWriter.emitPackage(taskPackage);
+      javaWriter.emitImports("com.telly.groundy.*");
+
+      javaWriter.beginType(DISPATCHER_FACTORY, "class",
+          EnumSet.of(Modifier.PUBLIC, Modifier.FINAL), null, "DispatcherFactory");
+      javaWriter.beginMethod("TaskDispatcher", "create", EnumSet.of(Modifier.PUBLIC),
+          "Class<? extends GroundyTask>", "taskType");
+      for (Map.Entry<Element, String> dispatcherEntry : dispatchers.entrySet()) {
+        String taskCheck = taskTypeCheck(dispatcherEntry.getKey(), taskPackage);
+        javaWriter.beginControlFlow("if (" + taskCheck + ")");
+        javaWriter.emitStatement("return new " + dispatcherEntry.getValue() + "()");
+        javaWriter.endControlFlow();
+      }
+      javaWriter.emitStatement("return null");
+      javaWriter.endMethod();
+
+      javaWriter.endType();
+      javaWriter.close();
+
+      writeSourceFile(taskPackage + "." + DISPATCHER_FACTORY, classContent.toString(),
+          new ArrayList<Element>(dispatchers.keySet()));
     } catch (IOException e) {
       e.printStackTrace();
       System.exit(-1);
     }
   }
 
-  private static String defaultValue(String parameterType) {
+  private void generateDispatcher(String taskPackage, String dispatcherClassName,
+      Collection<HandlerAndTask> handlers) {
+    StringWriter classContent = new StringWriter();
+    JavaWriter javaWriter = new JavaWriter(classContent);
+    try {
+      javaWriter.emitSingleLineComment("auto-generated file; don't modify");
+      javaWriter.emitPackage(taskPackage);
+      javaWriter.emitImports("android.os.Bundle", "com.telly.groundy.*");
+
+      javaWriter.beginType(dispatcherClassName, "class",
+          EnumSet.of(Modifier.PUBLIC, Modifier.FINAL), null, "TaskDispatcher");
+
+      // handlers are matched by their exact type, subclasses may have different callbacks
+      javaWriter.beginMethod("int", "indexOf", EnumSet.of(Modifier.PUBLIC), "Class<?>",
+          "handlerType");
+      int index = 0;
+      for (HandlerAndTask handlerAndTask : handlers) {
+        javaWriter.beginControlFlow("if (handlerType == " + handlerAndTask.handler + ".class)");
+        javaWriter.emitStatement("return " + index);
+        javaWriter.endControlFlow();
+        index++;
+      }
+      javaWriter.emitStatement("return -1");
+      javaWriter.endMethod();
+      javaWriter.emitEmptyLine();
+
+      javaWriter.beginMethod("void", "dispatch", EnumSet.of(Modifier.PUBLIC), "Object[]",
+          "handlers", "int[]", "handlerIndexes", "int", "callbackType", "Bundle", "resultData");
+      javaWriter.beginControlFlow("if (resultData == null)");
+      javaWriter.emitStatement("return");
+      javaWriter.endControlFlow();
+      javaWriter.beginControlFlow("for (int i = 0; i < handlers.length; i++)");
+      javaWriter.beginControlFlow("switch (handlerIndexes[i])");
+      for (int i = 0; i < handlers.size(); i++) {
+        javaWriter.beginControlFlow("case " + i + ":");
+        javaWriter.emitStatement("dispatch" + i + "(handlers[i], callbackType, resultData)");
+        javaWriter.emitStatement("break");
+        javaWriter.endControlFlow();
+      }
+      javaWriter.endControlFlow();
+      javaWriter.endControlFlow();
+      javaWriter.endMethod();
+
+      List<Element> originatingElements = new ArrayList<Element>();
+      index = 0;
+      for (HandlerAndTask handlerAndTask : handlers) {
+        originatingElements.add(handlerAndTask.handler);
+        javaWriter.emitEmptyLine();
+        javaWriter.beginMethod("void", "dispatch" + index,
+            EnumSet.of(Modifier.PRIVATE, Modifier.STATIC), "Object", "target", "int",
+            "callbackType", "Bundle", "resultData");
+        emitCallbackTypeSwitch(javaWriter, implMap.get(handlerAndTask),
+            handlerAndTask.handler.toString());
+        javaWriter.endMethod();
+        index++;
+      }
+
+      javaWriter.endType();
+      javaWriter.close();
+
+      writeSourceFile(taskPackage + "." + dispatcherClassName, classContent.toString(),
+          originatingElements);
+    } catch (IOException e) {
+      e.printStackTrace();
+      System.exit(-1);
+    }
+  }
+
+  private void writeSourceFile(String fullClassName, String fileContent,
+      List<Element> originatingElements) throws IOException {
+    if (verboseMode) {
+      LOGGER.info("Generated file: " + fullClassName + ".java");
+      System.out.println(fileContent);
+    }
+
+    generatedFilesThisRound = true;
+    Filer filer = processingEnv.getFiler();
+    Element[] elements = originatingElements.toArray(new Element[originatingElements.size()]);
+    JavaFileObject sourceFile = filer.createSourceFile(fullClassName, elements);
+    Writer writer = sourceFile.openWriter();
+    writer.write(fileContent);
+    writer.flush();
+    writer.close();
+  }
+
+  /**
+   * Tasks are compared by identity when they can be referenced from the package of the factory,
+   * and by name otherwise.
+   */
+  private String taskTypeCheck(Element taskElement, String fromPackage) {
+    if (isAccessibleFrom(taskElement, fromPackage)) {
+      return "taskType == " + taskElement + ".class";
+    }
+    return "\"" + binaryName(taskElement) + "\".equals(taskType.getName())";
+  }
+
+  /** @return true if the type and all its enclosing types can be referenced from the package */
+  private boolean isAccessibleFrom(Element typeElement, String fromPackage) {
+    boolean samePackage = packageOf(typeElement).equals(fromPackage);
+    Element element = typeElement;
+    while (element instanceof TypeElement) {
+      Set<Modifier> modifiers = element.getModifiers();
+      if (modifiers.contains(Modifier.PRIVATE)) {
+        return false;
+      }
+      if (!modifiers.contains(Modifier.PUBLIC) && !samePackage) {
+        return false;
+      }
+      element = element.getEnclosingElement();
+    }
+    return true;
+  }
+
+  private String packageOf(Element element) {
+    return processingEnv.getElementUtils().getPackageOf(element).getQualifiedName().toString();
+  }
+
+  private String binaryName(Element typeElement) {
+    return processingEnv.getElementUtils().getBinaryName((TypeElement) typeElement).toString();
+  }
+
+  /** @return the value a field of the given type has before it is assigned */
+  private static String fieldDefault(String type) {
+    if (boolean.class.getName().equals(type)) {
+      return "false";
+    }
+    // the supported reference types are all qualified or arrays
+    return type.indexOf('.') < 0 && !type.endsWith("[]") ? "0" : "null";
+  }
+
+  private static String defaultValue(String type) {
+    // boxed numbers default to zero too, like in the reflection proxy
+    String parameterType = type.startsWith("java.lang.") ? type.substring(10) : type;
     if (parameterType.equals(int.class.getName())
         || "Integer".equals(parameterType)
         || parameterType.equals(float.class.getName())
@@ -430,7 +1314,16 @@ public class GroundyCodeGen extends AbstractProcessor {
     return "null";
   }
 
-  private String cleanCasting(String type) {
+  /** @return the type without its type arguments, so that it can be used with instanceof */
+  private static String erasure(String type) {
+    int typeArguments = type.indexOf('<');
+    if (typeArguments == -1) {
+      return type;
+    }
+    return type.substring(0, typeArguments) + type.substring(type.lastIndexOf('>') + 1);
+  }
+
+  private static String cleanCasting(String type) {
     if (PRIMITIVES.containsKey(type)) {
       return PRIMITIVES.get(type);
     }
@@ -487,6 +1380,19 @@ public class GroundyCodeGen extends AbstractProcessor {
     return logger;
   }
 
+  private static final class ArgField {
+    final String name;
+    final String type;
+    // write call with a %s placeholder for the field, then the expression that reads it back
+    final String[] parcelCalls;
+
+    private ArgField(String name, String type, String[] parcelCalls) {
+      this.name = name;
+      this.type = type;
+      this.parcelCalls = parcelCalls;
+    }
+  }
+
   private static final class NameAndType {
     final String name;
     final String type;
@@ -514,6 +1420,8 @@ public class GroundyCodeGen extends AbstractProcessor {
     Element originatingElement;
     Element callbackElement;
     Element taskElement;
+    /** Types of the keys read by the params, null if the task does not declare its keys. */
+    List<String> keyTypes;
 
     @Override
     public boolean equals(Object o) {
@@ -582,14 +1490,23 @@ public class GroundyCodeGen extends AbstractProcessor {
           '}';
     }
 
-    public String generateClassName() {
-      String genClassName = handler.getSimpleName().toString();
+    /**
+     * @param handlerName name of the handler class relative to its package, e.g. Outer$Inner
+     */
+    public String generateClassName(String handlerName) {
+      String genClassName = handlerName;
       String groundyTaskName = task.toString().replaceAll("\\.", "\\$");
       return genClassName + "$" + groundyTaskName + "$Proxy";
     }
   }
 
   private static final Map<String, String> PRIMITIVES = new HashMap<String, String>();
+  private static final Map<String, String> CALLBACK_TYPES = new HashMap<String, String>();
+  private static final Map<String, String> UNBOXED = new HashMap<String, String>();
+  private static final Map<String, String> TYPED_GETTERS = new HashMap<String, String>();
+  private static final Map<String, String[]> WIDENED_FROM = new HashMap<String, String[]>();
+  private static final Map<String, String> WIDENING_CALLS = new HashMap<String, String>();
+  private static final Map<String, String[]> PARCEL_CALLS = new HashMap<String, String[]>();
 
   static {
     PRIMITIVES.put("int", "Integer");
@@ -600,5 +1517,60 @@ public class GroundyCodeGen extends AbstractProcessor {
     PRIMITIVES.put("boolean", "Boolean");
     PRIMITIVES.put("byte", "Byte");
     PRIMITIVES.put("short", "Short");
+
+    // names of the ids in CallbackTypes
+    CALLBACK_TYPES.put(START, "START");
+    CALLBACK_TYPES.put(SUCCESS, "SUCCESS");
+    CALLBACK_TYPES.put(FAILED, "FAILURE");
+    CALLBACK_TYPES.put(CANCEL, "CANCEL");
+    CALLBACK_TYPES.put(PROGRESS, "PROGRESS");
+    CALLBACK_TYPES.put(CALLBACK, "CALLBACK");
+
+    for (Map.Entry<String, String> primitive : PRIMITIVES.entrySet()) {
+      UNBOXED.put(primitive.getValue(), primitive.getKey());
+    }
+
+    // getters of the keys of other types that have one; primitives are handled with UNBOXED
+    TYPED_GETTERS.put("java.lang.String", "getString");
+    TYPED_GETTERS.put("java.lang.CharSequence", "getCharSequence");
+    TYPED_GETTERS.put("android.os.Bundle", "getBundle");
+    TYPED_GETTERS.put("java.lang.String[]", "getStringArray");
+    TYPED_GETTERS.put("java.lang.CharSequence[]", "getCharSequenceArray");
+    for (String primitive : PRIMITIVES.keySet()) {
+      TYPED_GETTERS.put(primitive + "[]", "get" + Character.toUpperCase(primitive.charAt(0))
+          + primitive.substring(1) + "Array");
+    }
+
+    // widenings the reflection proxy accepts, by the type expected by the callback
+    String[] fromInt = {"Integer"};
+    String[] fromIntLongFloat = {"Integer", "Long", "Float"};
+    WIDENED_FROM.put("Long", fromInt);
+    WIDENED_FROM.put("java.lang.Long", fromInt);
+    WIDENED_FROM.put("Float", fromInt);
+    WIDENED_FROM.put("java.lang.Float", fromInt);
+    WIDENED_FROM.put("Double", fromIntLongFloat);
+    WIDENED_FROM.put("java.lang.Double", fromIntLongFloat);
+
+    WIDENING_CALLS.put("Long", "longValue");
+    WIDENING_CALLS.put("java.lang.Long", "longValue");
+    WIDENING_CALLS.put("Float", "floatValue");
+    WIDENING_CALLS.put("java.lang.Float", "floatValue");
+    WIDENING_CALLS.put("Double", "doubleValue");
+    WIDENING_CALLS.put("java.lang.Double", "doubleValue");
+
+    PARCEL_CALLS.put("int", new String[] {"writeInt(%s)", "source.readInt()"});
+    PARCEL_CALLS.put("long", new String[] {"writeLong(%s)", "source.readLong()"});
+    PARCEL_CALLS.put("float", new String[] {"writeFloat(%s)", "source.readFloat()"});
+    PARCEL_CALLS.put("double", new String[] {"writeDouble(%s)", "source.readDouble()"});
+    PARCEL_CALLS.put("byte", new String[] {"writeByte(%s)", "source.readByte()"});
+    PARCEL_CALLS.put("boolean", new String[] {"writeInt(%s ? 1 : 0)", "source.readInt() != 0"});
+    PARCEL_CALLS.put("java.lang.String", new String[] {"writeString(%s)", "source.readString()"});
+    PARCEL_CALLS.put("android.os.Bundle", new String[] {
+        "writeBundle(%s)", "source.readBundle(Creator.class.getClassLoader())"});
+    PARCEL_CALLS.put("int[]", new String[] {"writeIntArray(%s)", "source.createIntArray()"});
+    PARCEL_CALLS.put("long[]", new String[] {"writeLongArray(%s)", "source.createLongArray()"});
+    PARCEL_CALLS.put("byte[]", new String[] {"writeByteArray(%s)", "source.createByteArray()"});
+    PARCEL_CALLS.put("java.lang.String[]", new String[] {
+        "writeStringArray(%s)", "source.createStringArray()"});
   }
 }
@@ -0,0 +1,61 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.telly.groundy;
+
+import android.os.Bundle;
+
+/** A result waiting to be dispatched by a {@link CallbacksReceiver}. */
+final class CallbackEvent implements Runnable {
+  final CallbacksReceiver receiver;
+  final int resultCode;
+  final int callbackType;
+  Bundle resultData;
+
+  /**
+   * @param r the receiver that will dispatch the event
+   * @param code the result code, if it is {@link GroundyTask#RESULT_CODE_CALLBACK_ANNOTATION}
+   * the event is dispatched to the callback handlers
+   * @param type the {@link CallbackTypes} id of the callback
+   * @param data the result data
+   */
+  CallbackEvent(CallbacksReceiver r, int code, int type, Bundle data) {
+    receiver = r;
+    resultCode = code;
+    callbackType = type;
+    resultData = data;
+  }
+
+  boolean isProgress() {
+    return callbackType == CallbackTypes.PROGRESS;
+  }
+
+  @Override public void run() {
+    if (resultCode == GroundyTask.RESULT_CODE_CALLBACK_ANNOTATION) {
+      receiver.dispatchCallback(callbackType, resultData);
+    } else {
+      receiver.dispatchResult(resultCode, resultData);
+    }
+  }
+}
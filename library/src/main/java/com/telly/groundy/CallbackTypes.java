@@ -0,0 +1,90 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.telly.groundy;
+
+import com.telly.groundy.annotations.OnCallback;
+import com.telly.groundy.annotations.OnCancel;
+import com.telly.groundy.annotations.OnFailure;
+import com.telly.groundy.annotations.OnProgress;
+import com.telly.groundy.annotations.OnStart;
+import com.telly.groundy.annotations.OnSuccess;
+import java.lang.annotation.Annotation;
+
+/**
+ * Compact ids for the callback annotations. Results carry these ids instead of the annotation
+ * classes, which would have to be serialized every time a result is parceled.
+ */
+public final class CallbackTypes {
+  public static final int UNKNOWN = 0;
+  public static final int START = 1;
+  public static final int SUCCESS = 2;
+  public static final int FAILURE = 3;
+  public static final int CANCEL = 4;
+  public static final int PROGRESS = 5;
+  public static final int CALLBACK = 6;
+
+  /** Indexed by id. */
+  private static final Class<?>[] ANNOTATIONS = {
+      null, OnStart.class, OnSuccess.class, OnFailure.class, OnCancel.class, OnProgress.class,
+      OnCallback.class
+  };
+
+  /** Non instanceable constant class. */
+  private CallbackTypes() {
+  }
+
+  /**
+   * @param callbackAnnotation one of the groundy callback annotations
+   * @return the id of the annotation, or {@link #UNKNOWN}
+   */
+  public static int idOf(Class<? extends Annotation> callbackAnnotation) {
+    for (int id = START; id < ANNOTATIONS.length; id++) {
+      if (ANNOTATIONS[id] == callbackAnnotation) {
+        return id;
+      }
+    }
+    return UNKNOWN;
+  }
+
+  /**
+   * @param callbackType a callback id
+   * @return the annotation with that id, or null if the id is unknown
+   */
+  public static Class<? extends Annotation> annotationOf(int callbackType) {
+    if (callbackType <= UNKNOWN || callbackType >= ANNOTATIONS.length) {
+      return null;
+    }
+    //noinspection unchecked
+    return (Class<? extends Annotation>) ANNOTATIONS[callbackType];
+  }
+
+  /**
+   * @param callbackType a callback id
+   * @return true if no more callbacks are sent after this one
+   */
+  static boolean isTerminal(int callbackType) {
+    return callbackType == SUCCESS || callbackType == FAILURE || callbackType == CANCEL;
+  }
+}
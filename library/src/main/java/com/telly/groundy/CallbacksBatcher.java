@@ -0,0 +1,140 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.telly.groundy;
+
+import android.os.Handler;
+import android.os.Looper;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Collects results of several {@link CallbacksReceiver}s and dispatches them in a single pass on
+ * its looper. Results of the same receiver keep their order; a progress update replaces the
+ * previous one when nothing else was received in between.
+ * <p/>
+ * Batchers are shared by the receivers that use the same looper and window, and only as long as
+ * those receivers are around: neither batchers nor their loopers are retained by the registry.
+ */
+final class CallbacksBatcher implements Runnable {
+  /** Roughly the duration of a frame. */
+  static final long FRAME_WINDOW = 16;
+
+  /** Guarded by itself; batchers are held by their receivers, and by pending messages. */
+  private static final Map<Looper, Map<Long, WeakReference<CallbacksBatcher>>> BATCHERS =
+      new WeakHashMap<Looper, Map<Long, WeakReference<CallbacksBatcher>>>();
+
+  private final Handler mHandler;
+  private final long mWindow;
+  private List<CallbackEvent> mPending = new ArrayList<CallbackEvent>();
+  private List<CallbackEvent> mDispatching = new ArrayList<CallbackEvent>();
+  private boolean mScheduled;
+
+  private CallbacksBatcher(Looper looper, long window) {
+    mHandler = new Handler(looper);
+    mWindow = window;
+  }
+
+  /**
+   * @param looper the looper callbacks are dispatched on
+   * @param window time in milliseconds results are collected before being dispatched
+   * @return the batcher for the specified looper and window
+   */
+  static CallbacksBatcher forLooper(Looper looper, long window) {
+    if (looper == null) {
+      throw new IllegalStateException("Batched callbacks can only be used on a looper thread");
+    }
+    synchronized (BATCHERS) {
+      Map<Long, WeakReference<CallbacksBatcher>> byWindow = BATCHERS.get(looper);
+      if (byWindow == null) {
+        byWindow = new HashMap<Long, WeakReference<CallbacksBatcher>>();
+        BATCHERS.put(looper, byWindow);
+      }
+      WeakReference<CallbacksBatcher> reference = byWindow.get(window);
+      CallbacksBatcher batcher = reference == null ? null : reference.get();
+      if (batcher == null) {
+        purgeCleared(byWindow);
+        batcher = new CallbacksBatcher(looper, window);
+        byWindow.put(window, new WeakReference<CallbacksBatcher>(batcher));
+      }
+      return batcher;
+    }
+  }
+
+  private static void purgeCleared(Map<Long, WeakReference<CallbacksBatcher>> byWindow) {
+    Iterator<WeakReference<CallbacksBatcher>> iterator = byWindow.values().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().get() == null) {
+        iterator.remove();
+      }
+    }
+  }
+
+  void enqueue(CallbackEvent event) {
+    synchronized (this) {
+      if (event.isProgress()) {
+        CallbackEvent last = lastPendingOf(event.receiver);
+        if (last != null && last.isProgress()) {
+          last.resultData = event.resultData;
+          return;
+        }
+      }
+      mPending.add(event);
+      if (!mScheduled) {
+        mScheduled = true;
+        mHandler.postDelayed(this, mWindow);
+      }
+    }
+  }
+
+  @Override public void run() {
+    List<CallbackEvent> batch;
+    synchronized (this) {
+      batch = mPending;
+      mPending = mDispatching;
+      mDispatching = batch;
+      mScheduled = false;
+    }
+
+    for (int i = 0, size = batch.size(); i < size; i++) {
+      batch.get(i).run();
+    }
+    batch.clear();
+  }
+
+  private CallbackEvent lastPendingOf(CallbacksReceiver receiver) {
+    for (int i = mPending.size() - 1; i >= 0; i--) {
+      CallbackEvent pending = mPending.get(i);
+      if (pending.receiver == receiver) {
+        return pending;
+      }
+    }
+    return null;
+  }
+}
@@ -25,131 +25,416 @@ package com.telly.groundy;
 
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcelable;
+import android.os.Process;
 import android.os.ResultReceiver;
 
-import com.telly.groundy.annotations.OnCancel;
-import com.telly.groundy.annotations.OnFailure;
-import com.telly.groundy.annotations.OnSuccess;
-
-import java.io.IOException;
-import java.io.Serializable;
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Modifier;
-import java.util.AbstractSet;
-import java.util.Collection;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 class CallbacksReceiver extends ResultReceiver implements HandlersHolder {
 
   private static final String TAG = "groundy:receiver";
-  public static final Pattern INNER_PATTERN = Pattern.compile("^.+?\\$\\d$");
-  private static final Map<TaskAndHandler, ResultProxy> PROXIES;
+  /** Matches anonymous and local classes, whose binary names have a $ followed by a digit. */
+  public static final Pattern INNER_PATTERN = Pattern.compile("^.+?\\$\\d.*$");
   public static final int ATTACH_RECEIVER_PARCEL = 9999;
   public static final String RECEIVER_PARCEL = "com.telly.groundy.RECEIVER_PARCEL";
+  private static final EventSink[] NO_SINKS = new EventSink[0];
 
   private final Class<? extends GroundyTask> groundyTaskType;
-  private final Set<Object> callbackHandlers;
+  /** Copy on write: dispatching iterates over a snapshot without locking nor allocating. */
+  private volatile BoundHandlers callbackHandlers = BoundHandlers.EMPTY;
+  /** Generated dispatcher for the task, if any. */
+  private final TaskDispatcher mDispatcher;
   private ResultReceiver mAttachedReceiver;
+  /** Notified of every callback as soon as it is received, before it is dispatched. */
+  private volatile EventSink[] mEventSinks = NO_SINKS;
+  /** Id of the task, used to replay the callbacks it sent while there were no handlers. */
+  private volatile long mTaskId;
+  /** Arguments the task was sent with; kept here instead of traveling back with the results. */
+  private volatile Bundle mOriginalParams;
+  private final CallbacksBatcher mBatcher;
+  private final Handler mHandler;
+  private final long mLocalId;
+
+  /** Receivers living in this process, so that tasks can deliver results without parceling. */
+  private static final Map<Long, LocalReference> LOCAL_RECEIVERS =
+      new ConcurrentHashMap<Long, LocalReference>();
+  private static final ReferenceQueue<CallbacksReceiver> COLLECTED_RECEIVERS =
+      new ReferenceQueue<CallbacksReceiver>();
+  private static final AtomicInteger LOCAL_ID_SEQUENCE = new AtomicInteger();
 
-  static {
-    PROXIES = Collections.synchronizedMap(new HashMap<TaskAndHandler, ResultProxy>());
+  CallbacksReceiver(Class<? extends GroundyTask> taskType, Object... handlers) {
+    this(taskType, null, handlers);
   }
 
-  CallbacksReceiver(Class<? extends GroundyTask> taskType, Object... handlers) {
-    super(new Handler());
-    callbackHandlers = new SetFromMap<Object>(new HashMap<Object, Boolean>());
+  /**
+   * @param taskType the type of task whose results this receiver handles
+   * @param batcher if not null, results are dispatched in batches by it instead of one by one
+   * @param handlers callback handlers
+   */
+  private CallbacksReceiver(Class<? extends GroundyTask> taskType, CallbacksBatcher batcher,
+      Object[] handlers) {
+    this(taskType, batcher, batcher == null ? new Handler() : null, handlers);
+  }
+
+  private CallbacksReceiver(Class<? extends GroundyTask> taskType, CallbacksBatcher batcher,
+      Handler handler, Object[] handlers) {
+    // results are received on the sender thread, so that sinks are fed before hopping to the
+    // handler; futures can then be waited on from the handler's thread
+    super(null);
     groundyTaskType = taskType;
+    mBatcher = batcher;
+    mHandler = handler;
+    mDispatcher = generatedDispatcherFor(taskType);
     appendCallbackHandlers(handlers);
+
+    // ids must not clash with receivers of other processes
+    mLocalId = ((long) Process.myPid() << 32) | LOCAL_ID_SEQUENCE.incrementAndGet();
+    purgeCollectedReceivers();
+    LOCAL_RECEIVERS.put(mLocalId, new LocalReference(this));
+  }
+
+  /** @return the dispatcher of the closest task in the hierarchy that has one, or null */
+  private static TaskDispatcher generatedDispatcherFor(Class<? extends GroundyTask> taskType) {
+    Class<?> type = taskType;
+    while (type != GroundyTask.class && type != null) {
+      // dispatchers are generated in the package of their task
+      DispatcherFactory dispatcherFactory = GeneratedRegistries.forPackageOf(type,
+          GeneratedRegistries.DISPATCHER_FACTORY, DispatcherFactory.class);
+      if (dispatcherFactory != null) {
+        //noinspection unchecked
+        TaskDispatcher dispatcher =
+            dispatcherFactory.create((Class<? extends GroundyTask>) type);
+        if (dispatcher != null) {
+          return dispatcher;
+        }
+      }
+      type = type.getSuperclass();
+    }
+    return null;
+  }
+
+  private static void purgeCollectedReceivers() {
+    Reference<? extends CallbacksReceiver> collected;
+    while ((collected = COLLECTED_RECEIVERS.poll()) != null) {
+      LOCAL_RECEIVERS.remove(((LocalReference) collected).localId);
+    }
+  }
+
+  /**
+   * Creates a receiver that dispatches its results in batches on the current thread's looper.
+   *
+   * @param taskType the type of task whose results this receiver handles
+   * @param batchWindow time in milliseconds results are collected before being dispatched
+   * @param handlers callback handlers
+   * @return a new batching receiver
+   */
+  static CallbacksReceiver batched(Class<? extends GroundyTask> taskType, long batchWindow,
+      Object... handlers) {
+    CallbacksBatcher batcher = CallbacksBatcher.forLooper(Looper.myLooper(), batchWindow);
+    return new CallbacksReceiver(taskType, batcher, handlers);
+  }
+
+  /**
+   * Creates a receiver without handlers nor looper, whose results only reach its event sink.
+   *
+   * @param taskType the type of task whose results this receiver handles
+   * @return a new receiver
+   */
+  static CallbacksReceiver direct(Class<? extends GroundyTask> taskType) {
+    return new CallbacksReceiver(taskType, null, null, new Object[0]);
+  }
+
+  void setTaskId(long taskId) {
+    mTaskId = taskId;
+  }
+
+  void addEventSink(EventSink eventSink) {
+    synchronized (this) {
+      EventSink[] eventSinks = new EventSink[mEventSinks.length + 1];
+      System.arraycopy(mEventSinks, 0, eventSinks, 0, mEventSinks.length);
+      eventSinks[mEventSinks.length] = eventSink;
+      mEventSinks = eventSinks;
+    }
+  }
+
+  /** @return an id that can be used to find this receiver from within the same process */
+  long getLocalId() {
+    return mLocalId;
+  }
+
+  /**
+   * @param localId the id of the receiver
+   * @return the receiver with that id if it lives in this process, null otherwise
+   */
+  static CallbacksReceiver findLocal(long localId) {
+    LocalReference reference = LOCAL_RECEIVERS.get(localId);
+    return reference != null ? reference.get() : null;
+  }
+
+  /**
+   * @param originalParams arguments the task is sent with, given to the terminal callbacks as
+   * {@link Groundy#ORIGINAL_PARAMS}
+   */
+  void setOriginalParams(Bundle originalParams) {
+    mOriginalParams = originalParams;
+  }
+
+  /**
+   * Delivers a callback from a task running in this same process. Unlike {@link
+   * #send(int, android.os.Bundle)} it does not go through the binder nor needs the callback type
+   * to be stored in the result data.
+   *
+   * @param callbackType the {@link CallbackTypes} id of the callback to invoke
+   * @param resultData the callback data
+   */
+  void deliver(int callbackType, Bundle resultData) {
+    notifySinks(callbackType, resultData);
+    CallbackEvent event = new CallbackEvent(this, GroundyTask.RESULT_CODE_CALLBACK_ANNOTATION,
+        callbackType, resultData);
+    if (mBatcher != null) {
+      mBatcher.enqueue(event);
+    } else if (mHandler != null) {
+      mHandler.post(event);
+    } else {
+      event.run();
+    }
   }
 
   @Override
   public void onReceiveResult(int resultCode, Bundle resultData) {
+    int callbackType = CallbackTypes.UNKNOWN;
+    if (resultCode == GroundyTask.RESULT_CODE_CALLBACK_ANNOTATION) {
+      callbackType = resultData.getInt(Groundy.KEY_CALLBACK_TYPE);
+      // the values are in memory now, so the files are not needed anymore
+      PayloadStore.release(PayloadStore.attach(resultData));
+      notifySinks(callbackType, resultData);
+    }
+    CallbackEvent event = new CallbackEvent(this, resultCode, callbackType, resultData);
+
+    if (mBatcher != null) {
+      mBatcher.enqueue(event);
+    } else if (mHandler != null) {
+      mHandler.post(event);
+    } else {
+      event.run();
+    }
+  }
+
+  void dispatchResult(int resultCode, Bundle resultData) {
     if (resultCode == ATTACH_RECEIVER_PARCEL && resultData != null) {
       Parcelable parcelable = resultData.getParcelable(RECEIVER_PARCEL);
       if (parcelable instanceof ResultReceiver) {
         L.d(TAG, "Attaching a parcel receiver");
         mAttachedReceiver = (ResultReceiver) parcelable;
       }
-    } else if (resultCode == GroundyTask.RESULT_CODE_CALLBACK_ANNOTATION) {
-      //noinspection unchecked
-      Class<? extends Annotation> callbackAnnotation =
-          (Class<? extends Annotation>) resultData.getSerializable(Groundy.KEY_CALLBACK_ANNOTATION);
-      handleCallback(callbackAnnotation, resultData);
-      if (mAttachedReceiver != null) {
-        mAttachedReceiver.send(resultCode, resultData);
+    }
+  }
+
+  /** Sinks get their own copies since the receiver keeps changing its bundle when dispatching. */
+  private void notifySinks(int callbackType, Bundle resultData) {
+    EventSink[] eventSinks = mEventSinks;
+    int chunkHolders = 0;
+    for (int i = 0; i < eventSinks.length; i++) {
+      if (eventSinks[i].holdsChunks()) {
+        chunkHolders++;
       }
     }
+    ResultReceiver chunkAck = chunkHolders != 0
+        ? (ResultReceiver) resultData.getParcelable(Groundy.KEY_CHUNK_ACK) : null;
+    if (chunkAck != null) {
+      // the task gets the credit back once these sinks and the handlers are done with the chunk
+      resultData.putParcelable(Groundy.KEY_CHUNK_ACK, new SharedAck(chunkAck, chunkHolders + 1));
+    }
+    for (int i = 0; i < eventSinks.length; i++) {
+      eventSinks[i].onCallback(callbackType, new Bundle(resultData));
+    }
+  }
+
+  void dispatchCallback(int callbackType, Bundle resultData) {
+    // the task type is known by the receiver, so it does not need to travel with the result
+    resultData.putSerializable(Groundy.TASK_IMPLEMENTATION, groundyTaskType);
+    Bundle originalParams = mOriginalParams;
+    boolean addOriginalParams = originalParams != null && CallbackTypes.isTerminal(callbackType)
+        && !resultData.containsKey(Groundy.ORIGINAL_PARAMS);
+    if (addOriginalParams) {
+      // a reference to the bundle this process already has, nothing is copied
+      resultData.putBundle(Groundy.ORIGINAL_PARAMS, originalParams);
+    }
+    long taskId = resultData.getLong(Groundy.TASK_ID);
+    if (callbackHandlers.all.length == 0 && mAttachedReceiver == null
+        && mEventSinks.length == 0) {
+      // nobody got it; kept in case handlers are attached later
+      ReplayBuffer.recordMissed(taskId, groundyTaskType, callbackType, resultData);
+    } else if (CallbackTypes.isTerminal(callbackType)) {
+      ReplayBuffer.markDelivered(taskId);
+    }
+    handleCallback(callbackType, resultData);
+    if (mAttachedReceiver != null) {
+      resultData.remove(Groundy.TASK_IMPLEMENTATION);
+      if (addOriginalParams) {
+        // the attached receiver holds its own copy
+        resultData.remove(Groundy.ORIGINAL_PARAMS);
+      }
+      resultData.putInt(Groundy.KEY_CALLBACK_TYPE, callbackType);
+      mAttachedReceiver.send(GroundyTask.RESULT_CODE_CALLBACK_ANNOTATION, resultData);
+    } else {
+      acknowledgeChunk(resultData);
+    }
+  }
+
+  /**
+   * Lets the task know a streamed chunk was consumed so that it can send more. Chunks forwarded to
+   * an attached receiver are acknowledged by that receiver instead.
+   */
+  private static void acknowledgeChunk(Bundle resultData) {
+    ResultReceiver chunkAck = resultData.getParcelable(Groundy.KEY_CHUNK_ACK);
+    if (chunkAck != null) {
+      chunkAck.send(0, null);
+    }
   }
 
   @Override
   public void appendCallbackHandlers(Object... handlers) {
-    if (handlers != null) {
-      Collections.addAll(callbackHandlers, handlers);
+    if (handlers == null) {
+      return;
+    }
+    boolean appended;
+    synchronized (this) {
+      BoundHandler[] current = callbackHandlers.all;
+      List<BoundHandler> updated = new ArrayList<BoundHandler>(current.length + handlers.length);
+      Collections.addAll(updated, current);
+      for (Object handler : handlers) {
+        if (handler != null && indexOf(updated, handler) == -1) {
+          // resolve how to dispatch once, so that dispatching does not need to look it up
+          updated.add(bind(handler));
+        }
+      }
+      appended = updated.size() > current.length;
+      callbackHandlers = BoundHandlers.of(updated);
+    }
+    if (appended) {
+      replayMissedCallbacks();
+    }
+  }
+
+  /**
+   * Dispatches the callbacks of the task that arrived while it had no handlers, e.g. while an
+   * activity was being recreated.
+   */
+  void replayMissedCallbacks() {
+    long taskId = mTaskId;
+    if (taskId == 0) {
+      return;
+    }
+    final List<ReplayBuffer.Event> missed = ReplayBuffer.takeMissed(taskId);
+    if (missed.isEmpty()) {
+      return;
+    }
+
+    Runnable replay = new Runnable() {
+      @Override public void run() {
+        for (ReplayBuffer.Event event : missed) {
+          L.d(TAG, "Replaying callback " + event.callbackType + " of task " + mTaskId);
+          handleCallback(event.callbackType, event.resultData);
+        }
+      }
+    };
+    if (mHandler != null) {
+      mHandler.post(replay);
+    } else {
+      replay.run();
     }
   }
 
   @Override
   public void removeCallbackHandlers(Class<? extends GroundyTask> groundyTaskClass,
                                      Object... handlers) {
-    if (handlers != null) {
-      for (Object callbackHandler : handlers) {
-        callbackHandlers.remove(callbackHandler);
+    if (handlers == null) {
+      return;
+    }
+    synchronized (this) {
+      List<BoundHandler> updated = new ArrayList<BoundHandler>();
+      Collections.addAll(updated, callbackHandlers.all);
+      for (Object handler : handlers) {
+        int index = indexOf(updated, handler);
+        if (index != -1) {
+          updated.remove(index);
+        }
+      }
+      callbackHandlers = BoundHandlers.of(updated);
+    }
+  }
+
+  private static int indexOf(List<BoundHandler> boundHandlers, Object handler) {
+    for (int i = 0; i < boundHandlers.size(); i++) {
+      if (boundHandlers.get(i).handler.equals(handler)) {
+        return i;
       }
     }
+    return -1;
+  }
+
+  private BoundHandler bind(Object handler) {
+    if (mDispatcher != null) {
+      int dispatchIndex = mDispatcher.indexOf(handler.getClass());
+      if (dispatchIndex != -1) {
+        return new BoundHandler(handler, null, dispatchIndex);
+      }
+    }
+    return new BoundHandler(handler, getMethodProxy(handler), -1);
   }
 
   @Override
   public void clearHandlers() {
-    callbackHandlers.clear();
+    callbackHandlers = BoundHandlers.EMPTY;
   }
 
   @Override
-  public void handleCallback(Class<? extends Annotation> callbackAnnotation, Bundle resultData) {
-    boolean isEndingAnnotation = callbackAnnotation == OnSuccess.class ||
-        callbackAnnotation == OnFailure.class ||
-        callbackAnnotation == OnCancel.class;
-
-    for (Object callbackHandler : callbackHandlers) {
-      ResultProxy methodProxy = getMethodProxy(callbackHandler);
-      if (methodProxy != null) {
-        methodProxy.apply(callbackHandler, callbackAnnotation, resultData);
-      }
+  public void handleCallback(int callbackType, Bundle resultData) {
+    BoundHandlers boundHandlers = callbackHandlers;
+    if (boundHandlers.dispatched.length > 0) {
+      mDispatcher.dispatch(boundHandlers.dispatched, boundHandlers.dispatchIndexes, callbackType,
+          resultData);
+    }
+
+    BoundHandler[] proxied = boundHandlers.proxied;
+    for (int i = 0; i < proxied.length; i++) {
+      BoundHandler boundHandler = proxied[i];
+      boundHandler.proxy.apply(boundHandler.handler, callbackType, resultData);
     }
 
-    if (isEndingAnnotation) {
+    if (CallbackTypes.isTerminal(callbackType)) {
+      LOCAL_RECEIVERS.remove(mLocalId);
+      mOriginalParams = null;
       clearHandlers();
     }
   }
 
   private ResultProxy getMethodProxy(Object handler) {
-    if (handler == null) {
-      return null;
-    }
-
     Class<?> handlerType = handler.getClass();
-    TaskAndHandler taskAndHandler = new TaskAndHandler(groundyTaskType, handlerType);
-    synchronized (PROXIES) {
-      if (PROXIES.containsKey(taskAndHandler)) {
-        return PROXIES.get(taskAndHandler);
-      }
+    ResultProxy resultProxy = MetadataCache.getProxy(groundyTaskType, handlerType);
+    if (resultProxy != null) {
+      return resultProxy;
     }
 
-    ResultProxy resultProxy;
-    boolean isNotPublic = !Modifier.isPublic(handlerType.getModifiers());
-    if (isInner(handlerType) || isNotPublic) {
-      if (isNotPublic) {
-        L.d(TAG, "Using reflection for "
-            + handlerType
-            + " because its not public. It's recommended to use public callbacks which enables code"
-            + "generation which makes things way faster.");
-      }
+    if (isInner(handlerType)) {
+      // annotation processors cannot see anonymous nor local classes
+      L.d(TAG, "Using reflection for "
+          + handlerType
+          + " because it is anonymous or local. It's recommended to use named callbacks which"
+          + " enables code generation which makes things way faster.");
       resultProxy = new ReflectProxy(groundyTaskType, handlerType);
     } else {
       resultProxy = getProxyFromGeneratedClass(handlerType);
@@ -159,33 +444,24 @@ class CallbacksReceiver extends ResultReceiver implements HandlersHolder {
       }
     }
 
-    PROXIES.put(taskAndHandler, resultProxy);
-    return resultProxy;
+    return MetadataCache.putProxy(groundyTaskType, handlerType, resultProxy);
   }
 
   private ResultProxy getProxyFromGeneratedClass(Class<?> handlerType) {
-    ResultProxy resultProxy = null;
+    // proxies are generated in the package of their handler
+    ProxyFactory proxyFactory = GeneratedRegistries.forPackageOf(handlerType,
+        GeneratedRegistries.PROXY_FACTORY, ProxyFactory.class);
+    if (proxyFactory == null) {
+      return null;
+    }
+
     Class<?> taskType = groundyTaskType;
     while (taskType != Object.class) {
-      try {
-        String pkg = "com.telly.groundy.generated.";
-        String handlerClassName = handlerType.getSimpleName();
-        String taskName = taskType.getName().replaceAll("\\.", "\\$");
-        String fullProxyClassName = pkg + handlerClassName + "$" + taskName + "$Proxy";
-        Class<?> proxyClass = Class.forName(fullProxyClassName);
-        resultProxy = (ResultProxy) proxyClass.newInstance();
-        if (resultProxy == null) {
-          throw new NullPointerException("Could not create proxy: " + proxyClass);
-        }
-        L.d(TAG, "Using fast proxy: " + fullProxyClassName);
-      } catch (Exception e) {
-        if (e instanceof ClassNotFoundException) {
-          L.e(TAG, "Could not load generated proxy: " + e.getMessage());
-        } else {
-          e.printStackTrace();
-        }
-      }
+      //noinspection unchecked
+      ResultProxy resultProxy =
+          proxyFactory.create(handlerType, (Class<? extends GroundyTask>) taskType);
       if (resultProxy != null) {
+        L.d(TAG, "Using fast proxy: " + resultProxy.getClass().getName());
         return resultProxy;
       }
       taskType = taskType.getSuperclass();
@@ -198,114 +474,99 @@ class CallbacksReceiver extends ResultReceiver implements HandlersHolder {
     return matcher.matches();
   }
 
-  private static final class TaskAndHandler {
-    final Class<? extends GroundyTask> taskType;
-    final Class<?> handlerType;
-
-    private TaskAndHandler(Class<? extends GroundyTask> taskClass, Class<?> handlerClass) {
-      taskType = taskClass;
-      handlerType = handlerClass;
-    }
-
-    @Override
-    public boolean equals(Object o) {
-      if (this == o) return true;
-      if (o == null || getClass() != o.getClass()) return false;
-
-      TaskAndHandler that = (TaskAndHandler) o;
-
-      return !(handlerType != null ? !handlerType.equals(that.handlerType)
-          : that.handlerType != null) && !(taskType != null ? !taskType.equals(that.taskType)
-          : that.taskType != null);
-    }
-
-    @Override
-    public int hashCode() {
-      int result = taskType != null ? taskType.hashCode() : 0;
-      result = 31 * result + (handlerType != null ? handlerType.hashCode() : 0);
-      return result;
-    }
+  /** Receives the callbacks in the thread that delivers them. */
+  interface EventSink {
+    /**
+     * @param callbackType one of the {@link CallbackTypes} ids
+     * @param resultData data sent by the task, a copy owned by this sink
+     */
+    void onCallback(int callbackType, Bundle resultData);
+
+    /**
+     * @return true if this sink sends the {@link Groundy#KEY_CHUNK_ACK} receiver of the chunks it
+     * gets once it consumed them, so that the task does not stream faster than this sink consumes
+     */
+    boolean holdsChunks();
   }
 
-  private static class SetFromMap<E> extends AbstractSet<E> implements Set<E>, Serializable {
-    private final Map<E, Boolean> m;  // The backing map
-    private transient Set<E> s;       // Its keySet
-
-    SetFromMap(Map<E, Boolean> map) {
-      if (!map.isEmpty()) {
-        throw new IllegalArgumentException("Map is non-empty");
-      }
-      m = map;
-      s = map.keySet();
-    }
-
-    public void clear() {
-      m.clear();
-    }
-
-    public int size() {
-      return m.size();
-    }
-
-    public boolean isEmpty() {
-      return m.isEmpty();
-    }
-
-    public boolean contains(Object o) {
-      return m.containsKey(o);
-    }
-
-    public boolean remove(Object o) {
-      return m.remove(o) != null;
-    }
-
-    public boolean add(E e) {
-      return m.put(e, Boolean.TRUE) == null;
-    }
-
-    public Iterator<E> iterator() {
-      return s.iterator();
-    }
+  /** Acknowledges a chunk to the task once all its consumers in this process acknowledged it. */
+  private static final class SharedAck extends ResultReceiver {
+    private final ResultReceiver mChunkAck;
+    private final AtomicInteger mPending;
 
-    public Object[] toArray() {
-      return s.toArray();
+    SharedAck(ResultReceiver chunkAck, int consumers) {
+      super(null);
+      mChunkAck = chunkAck;
+      mPending = new AtomicInteger(consumers);
     }
 
-    public <T> T[] toArray(T[] a) {
-      return s.toArray(a);
+    @Override protected void onReceiveResult(int resultCode, Bundle resultData) {
+      if (mPending.decrementAndGet() == 0) {
+        mChunkAck.send(resultCode, resultData);
+      }
     }
+  }
 
-    public String toString() {
-      return s.toString();
-    }
+  private static final class LocalReference extends WeakReference<CallbacksReceiver> {
+    final long localId;
 
-    public int hashCode() {
-      return s.hashCode();
+    LocalReference(CallbacksReceiver receiver) {
+      super(receiver, COLLECTED_RECEIVERS);
+      localId = receiver.mLocalId;
     }
+  }
 
-    public boolean equals(Object o) {
-      return o == this || s.equals(o);
-    }
+  private static final class BoundHandler {
+    final Object handler;
+    /** Null if the handler is dispatched by the task dispatcher. */
+    final ResultProxy proxy;
+    final int dispatchIndex;
 
-    public boolean containsAll(Collection<?> c) {
-      return s.containsAll(c);
+    BoundHandler(Object callbackHandler, ResultProxy resultProxy, int index) {
+      handler = callbackHandler;
+      proxy = resultProxy;
+      dispatchIndex = index;
     }
+  }
 
-    public boolean removeAll(Collection<?> c) {
-      return s.removeAll(c);
+  /** Immutable snapshot of the handlers, split by the way results reach them. */
+  private static final class BoundHandlers {
+    static final BoundHandlers EMPTY = of(Collections.<BoundHandler>emptyList());
+
+    final BoundHandler[] all;
+    final BoundHandler[] proxied;
+    final Object[] dispatched;
+    final int[] dispatchIndexes;
+
+    private BoundHandlers(BoundHandler[] all, BoundHandler[] proxied, Object[] dispatched,
+        int[] dispatchIndexes) {
+      this.all = all;
+      this.proxied = proxied;
+      this.dispatched = dispatched;
+      this.dispatchIndexes = dispatchIndexes;
     }
 
-    public boolean retainAll(Collection<?> c) {
-      return s.retainAll(c);
-    }
-    // addAll is the only inherited implementation
+    static BoundHandlers of(List<BoundHandler> boundHandlers) {
+      List<BoundHandler> proxied = new ArrayList<BoundHandler>();
+      List<BoundHandler> dispatched = new ArrayList<BoundHandler>();
+      for (BoundHandler boundHandler : boundHandlers) {
+        if (boundHandler.proxy != null) {
+          proxied.add(boundHandler);
+        } else {
+          dispatched.add(boundHandler);
+        }
+      }
 
-    private static final long serialVersionUID = 2454657854757543876L;
+      Object[] dispatchedHandlers = new Object[dispatched.size()];
+      int[] dispatchIndexes = new int[dispatched.size()];
+      for (int i = 0; i < dispatchedHandlers.length; i++) {
+        dispatchedHandlers[i] = dispatched.get(i).handler;
+        dispatchIndexes[i] = dispatched.get(i).dispatchIndex;
+      }
 
-    private void readObject(java.io.ObjectInputStream stream)
-        throws IOException, ClassNotFoundException {
-      stream.defaultReadObject();
-      s = m.keySet();
+      BoundHandler[] all = boundHandlers.toArray(new BoundHandler[boundHandlers.size()]);
+      return new BoundHandlers(all, proxied.toArray(new BoundHandler[proxied.size()]),
+          dispatchedHandlers, dispatchIndexes);
     }
   }
 }
@@ -0,0 +1,89 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.telly.groundy;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds the registries the annotation processor generates in the packages of handlers and tasks.
+ * Registries are looked up by name once per package, and so each module that runs the processor
+ * brings its own without clashing with the others.
+ */
+final class GeneratedRegistries {
+  /** ProxyFactory generated in every package that has handlers. */
+  static final String PROXY_FACTORY = "GroundyPackageProxies";
+  /** DispatcherFactory generated in every package that has tasks with dispatchers. */
+  static final String DISPATCHER_FACTORY = "GroundyTaskDispatchers";
+  /** TaskCreator generated in every package that has tasks. */
+  static final String TASK_CREATOR = "GroundyTaskCreator";
+
+  private static final String TAG = GeneratedRegistries.class.getSimpleName();
+
+  /** Marks packages without a registry. */
+  private static final Object NONE = new Object();
+  /** Guarded by itself. */
+  private static final Map<String, Object> REGISTRIES = new HashMap<String, Object>();
+
+  /** Non instanceable class. */
+  private GeneratedRegistries() {
+  }
+
+  /**
+   * @param type a handler or task type
+   * @param registryName simple name of the registry class
+   * @param registryType interface the registry implements
+   * @return the registry generated in the package of the provided type, or null if there is none
+   */
+  static <T> T forPackageOf(Class<?> type, String registryName, Class<T> registryType) {
+    String typeName = type.getName();
+    int lastDot = typeName.lastIndexOf('.');
+    String className = lastDot == -1 ? registryName
+        : typeName.substring(0, lastDot + 1) + registryName;
+
+    Object registry;
+    synchronized (REGISTRIES) {
+      registry = REGISTRIES.get(className);
+    }
+    if (registry == null) {
+      registry = load(className, type.getClassLoader());
+      synchronized (REGISTRIES) {
+        REGISTRIES.put(className, registry);
+      }
+    }
+    return registry == NONE ? null : registryType.cast(registry);
+  }
+
+  private static Object load(String className, ClassLoader classLoader) {
+    try {
+      return Class.forName(className, true, classLoader).newInstance();
+    } catch (ClassNotFoundException e) {
+      L.d(TAG, "No " + className + " found");
+    } catch (Exception e) {
+      L.e(TAG, "Could not load " + className, e);
+    }
+    return NONE;
+  }
+}
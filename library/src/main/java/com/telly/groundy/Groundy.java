@@ -89,20 +89,27 @@ public final class Groundy implements Parcelable {
   static final String KEY_ARGUMENTS = "com.telly.groundy.key.ARGS";
   static final String STACK_TRACE = "com.telly.groundy.key.STACK_TRACE";
   static final String KEY_RECEIVER = "com.telly.groundy.key.RECEIVER";
+  static final String KEY_RECEIVER_ID = "com.telly.groundy.key.RECEIVER_ID";
   static final String KEY_TASK = "com.telly.groundy.key.TASK";
   static final String KEY_GROUP_ID = "com.telly.groundy.key.GROUP_ID";
-  static final String KEY_CALLBACK_ANNOTATION = "com.telly.groundy.key.CALLBACK_ANNOTATION";
+  static final String KEY_TYPED_ARGS = "com.telly.groundy.key.TYPED_ARGS";
+  static final String KEY_CALLBACK_TYPE = "com.telly.groundy.key.CALLBACK_TYPE";
   static final String KEY_CALLBACK_NAME = "com.telly.groundy.key.CALLBACK_NAME";
+  static final String KEY_CHUNK_ACK = "com.telly.groundy.key.CHUNK_ACK";
 
   private final Class<? extends GroundyTask> mGroundyTask;
   private final long mId;
   private CallbacksReceiver mReceiver;
   private final Bundle mArgs = new Bundle();
+  private TaskArgs mTaskArgs;
+  private TaskFuture mFuture;
+  private TaskPublisher mPublisher;
   private int mGroupId;
   private boolean mAlreadyProcessed = false;
   private CallbacksManager mCallbacksManager;
   private Class<? extends GroundyService> mGroundyClass = GroundyService.class;
   private boolean mAllowNonUIThreadCallbacks = false;
+  private long mBatchWindow;
 
   private Groundy(Class<? extends GroundyTask> groundyTask) {
     mGroundyTask = groundyTask;
@@ -143,6 +150,20 @@ public final class Groundy implements Parcelable {
     return this;
   }
 
+  /**
+   * Set the typed arguments needed to run the task. They are generated for the tasks with
+   * {@link com.telly.groundy.annotations.Arg} fields, which are assigned directly before the
+   * task runs. Unlike the Bundle arguments, they are not included in the callbacks.
+   *
+   * @param arguments the generated arguments of the task
+   * @return itself
+   */
+  public Groundy args(TaskArgs arguments) {
+    checkAlreadyProcessed();
+    mTaskArgs = arguments;
+    return this;
+  }
+
   /**
    * Allows this value to receive callback messages on non UI threads.
    *
@@ -154,6 +175,39 @@ public final class Groundy implements Parcelable {
     return this;
   }
 
+  /**
+   * Makes callbacks of this value be dispatched in batches, once per frame, together with the
+   * callbacks of any other value batched on the same thread with the same window. Useful when lots
+   * of tasks report progress at the same time. Must be called before {@link
+   * #callback(Object...)}.
+   *
+   * @return itself
+   */
+  public Groundy batchCallbacks() {
+    return batchCallbacks(CallbacksBatcher.FRAME_WINDOW);
+  }
+
+  /**
+   * Makes callbacks of this value be dispatched in batches. Callbacks of a task are always
+   * dispatched in order, but outdated progress updates waiting in the same batch are dropped.
+   * Values batched on the same thread with the same window share their batches. Must be called
+   * before {@link #callback(Object...)}.
+   *
+   * @param windowMillis time in milliseconds callbacks are collected before being dispatched
+   * @return itself
+   */
+  public Groundy batchCallbacks(long windowMillis) {
+    if (windowMillis <= 0) {
+      throw new IllegalArgumentException("Batch window must be greater than zero");
+    }
+    if (mReceiver != null) {
+      throw new IllegalStateException("batchCallbacks() must be called before callback()");
+    }
+    checkAlreadyProcessed();
+    mBatchWindow = windowMillis;
+    return this;
+  }
+
   /**
    * @param callbacks callbacks to register for this value
    * @return itself
@@ -171,10 +225,44 @@ public final class Groundy implements Parcelable {
           "callbacks can only be set on the UI thread. If you are sure you can handle callbacks "
               + "from a non UI thread, call Groundy#allowNonUiCallbacks() method first");
     }
-    mReceiver = new CallbacksReceiver(mGroundyTask, callbacks);
+    if (mBatchWindow > 0) {
+      mReceiver = CallbacksReceiver.batched(mGroundyTask, mBatchWindow, callbacks);
+    } else {
+      mReceiver = new CallbacksReceiver(mGroundyTask, callbacks);
+    }
     return this;
   }
 
+  /**
+   * Returns a future completed with the result of this task, which can be waited on or composed
+   * from background threads. Unlike {@link #callback(Object...)} it can be used from any thread
+   * and does not need a looper.
+   *
+   * @return the future of this task; the same instance if called more than once
+   */
+  public TaskFuture future() {
+    checkAlreadyProcessed();
+    if (mFuture == null) {
+      mFuture = new TaskFuture();
+    }
+    return mFuture;
+  }
+
+  /**
+   * Returns a reactive streams publisher of the callbacks of this task: start, progress, custom
+   * callbacks and the result. Progress updates are coalesced while the subscriber has no
+   * outstanding demand. It can be used from any thread and does not need a looper.
+   *
+   * @return the publisher of this task; the same instance if called more than once
+   */
+  public TaskPublisher publisher() {
+    checkAlreadyProcessed();
+    if (mPublisher == null) {
+      mPublisher = new TaskPublisher();
+    }
+    return mPublisher;
+  }
+
   /**
    * This allows you to set an identification groupId to the value which can be later used to
    * cancel it. Group ids can be shared by several groundy tasks even if their implementation is
@@ -230,6 +318,10 @@ public final class Groundy implements Parcelable {
    * Queues a value to the Groundy Service. This value won't be executed until the previous queued
    * tasks are done. If you need your value to execute right away use the {@link
    * Groundy#executeUsing(Context)} method.
+   * <p/>
+   * Byte array arguments bigger than 128 KiB are written to a temporary file if the service runs
+   * in another process. That is blocking disk I/O, so in that case call it from a background
+   * thread.
    *
    * @param context used to start the Groundy service
    * @return a {@link TaskHandler} that can be used to clear the task callbacks list or cancel it
@@ -241,6 +333,10 @@ public final class Groundy implements Parcelable {
 
   /**
    * Execute a value right away.
+   * <p/>
+   * Byte array arguments bigger than 128 KiB are written to a temporary file if the service runs
+   * in another process. That is blocking disk I/O, so in that case call it from a background
+   * thread.
    *
    * @param context used to start the Groundy service
    * @return a {@link TaskHandler} that can be used to clear the task callbacks list or cancel it
@@ -252,6 +348,10 @@ public final class Groundy implements Parcelable {
 
   /**
    * Creates an intent that can be used to execute this task by invoking context.startService().
+   * <p/>
+   * Byte array arguments bigger than 128 KiB are written to a temporary file if the service runs
+   * in another process. That is blocking disk I/O, so in that case call it from a background
+   * thread.
    *
    * @param context used to start the groundy service
    * @param async true if the task must be executed right away, false if it must be queued
@@ -306,14 +406,33 @@ public final class Groundy implements Parcelable {
   private Intent internalGetServiceIntent(Context context, boolean async) {
     Intent intent = new Intent(context, mGroundyClass);
     intent.setAction(async ? GroundyService.ACTION_EXECUTE : GroundyService.ACTION_QUEUE);
-    intent.putExtra(KEY_ARGUMENTS, mArgs);
+    if ((mFuture != null || mPublisher != null) && mReceiver == null) {
+      mReceiver = CallbacksReceiver.direct(mGroundyTask);
+    }
+    if (mFuture != null) {
+      mReceiver.addEventSink(mFuture.sink());
+      mFuture.bind(context, mId, mGroundyClass);
+    }
+    if (mPublisher != null) {
+      mReceiver.addEventSink(mPublisher.sink());
+      mPublisher.bind(context, mId, mGroundyClass);
+    }
+    // large byte arrays would hit the binder transaction limit
+    intent.putExtra(KEY_ARGUMENTS, PayloadStore.detach(context, mArgs, mGroundyClass));
+    if (mTaskArgs != null) {
+      intent.putExtra(KEY_TYPED_ARGS, mTaskArgs);
+    }
 
     if (devMode) {
       StackTraceElement[] stackTrace = new Throwable().getStackTrace();
       intent.putExtra(STACK_TRACE, stackTrace);
     }
     if (mReceiver != null) {
+      // the receiver hands the arguments to the callbacks, so the task does not send them back
+      mReceiver.setOriginalParams(mArgs);
+      mReceiver.setTaskId(mId);
       intent.putExtra(KEY_RECEIVER, mReceiver);
+      intent.putExtra(KEY_RECEIVER_ID, mReceiver.getLocalId());
     }
     intent.putExtra(KEY_TASK, mGroundyTask);
     intent.putExtra(TASK_ID, mId);
@@ -349,6 +468,7 @@ public final class Groundy implements Parcelable {
         ", groundyTask=" + mGroundyTask +
         ", resultReceiver=" + mReceiver +
         ", extras=" + mArgs +
+        ", taskArgs=" + mTaskArgs +
         ", groupId=" + mGroupId +
         '}';
   }
@@ -362,24 +482,30 @@ public final class Groundy implements Parcelable {
 
       //noinspection unchecked
       Groundy groundy = new Groundy(groundyTask, id);
+      ResultReceiver r = null;
       if (hadReceiver) {
-        ResultReceiver r = source.readParcelable(CallbacksReceiver.class.getClassLoader());
-        if (r instanceof CallbacksReceiver) {
-          groundy.mReceiver = (CallbacksReceiver) r;
-        } else if (r != null) {
-          //noinspection unchecked
-          groundy.mReceiver = new CallbacksReceiver(groundyTask);
-          Bundle bundle = new Bundle();
-          bundle.putParcelable(CallbacksReceiver.RECEIVER_PARCEL, groundy.mReceiver);
-          r.send(CallbacksReceiver.ATTACH_RECEIVER_PARCEL, bundle);
-        }
+        r = source.readParcelable(CallbacksReceiver.class.getClassLoader());
       }
       groundy.mArgs.putAll(source.readBundle());
+      groundy.mTaskArgs = source.readParcelable(groundyTask.getClassLoader());
       groundy.mGroupId = source.readInt();
       groundy.mAlreadyProcessed = source.readByte() == 1;
       //noinspection unchecked
       groundy.mGroundyClass = (Class) source.readSerializable();
       groundy.mAllowNonUIThreadCallbacks = source.readByte() == 1;
+
+      if (r instanceof CallbacksReceiver) {
+        groundy.mReceiver = (CallbacksReceiver) r;
+      } else if (r != null) {
+        // the forwarding receiver strips the original params, so the new one must add them
+        //noinspection unchecked
+        groundy.mReceiver = new CallbacksReceiver(groundyTask);
+        groundy.mReceiver.setOriginalParams(groundy.mArgs);
+        groundy.mReceiver.setTaskId(id);
+        Bundle bundle = new Bundle();
+        bundle.putParcelable(CallbacksReceiver.RECEIVER_PARCEL, groundy.mReceiver);
+        r.send(CallbacksReceiver.ATTACH_RECEIVER_PARCEL, bundle);
+      }
       return groundy;
     }
 
@@ -400,6 +526,7 @@ public final class Groundy implements Parcelable {
       dest.writeParcelable(mReceiver, flags);
     }
     dest.writeBundle(mArgs);
+    dest.writeParcelable(mTaskArgs, flags);
     dest.writeInt(mGroupId);
     dest.writeByte((byte) (mAlreadyProcessed ? 1 : 0));
     dest.writeSerializable(mGroundyClass);
@@ -613,7 +740,9 @@ public final class Groundy implements Parcelable {
 
   /**
    * Inserts a byte array value into the mapping of this Bundle, replacing any existing value for
-   * the given key.  Either key or value may be null.
+   * the given key.  Either key or value may be null. Arrays bigger than 128 KiB are not parceled:
+   * they are handed over in memory or, if the service runs in another process, through a
+   * temporary file written when the task is queued.
    *
    * @param key a String, or null
    * @param value a byte array object, or null
@@ -23,11 +23,11 @@
 
 package com.telly.groundy;
 
-import android.content.ComponentName;
 import android.content.Context;
-import android.content.Intent;
-import android.content.ServiceConnection;
-import android.os.IBinder;
+import android.os.Handler;
+import android.os.Looper;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -36,6 +36,9 @@ import java.util.List;
  */
 public final class GroundyManager {
 
+  /** If true, callbacks verified at compile time get values without checking their types. */
+  private static volatile boolean trustedDispatch;
+
   private GroundyManager() {
   }
 
@@ -56,9 +59,9 @@ public final class GroundyManager {
    */
   public static void cancelAll(Context context,
       Class<? extends GroundyService> groundyServiceClass) {
-    new GroundyServiceConnection(context, groundyServiceClass) {
+    new ServiceOperation(context, groundyServiceClass) {
       @Override
-      protected void onGroundyServiceBound(GroundyService.GroundyServiceBinder binder) {
+      public void onGroundyServiceBound(GroundyService.GroundyServiceBinder binder) {
         binder.cancelAllTasks();
       }
     }.start();
@@ -102,9 +105,9 @@ public final class GroundyManager {
     if (id <= 0) {
       throw new IllegalStateException("id must be greater than zero");
     }
-    new GroundyServiceConnection(context, groundyServiceClass) {
+    new ServiceOperation(context, groundyServiceClass) {
       @Override
-      protected void onGroundyServiceBound(GroundyService.GroundyServiceBinder binder) {
+      public void onGroundyServiceBound(GroundyService.GroundyServiceBinder binder) {
         int result = binder.cancelTaskById(id, reason);
         if (cancelListener != null) {
           cancelListener.onCancelResult(id, result);
@@ -126,9 +129,9 @@ public final class GroundyManager {
     if (groupId <= 0) {
       throw new IllegalStateException("Group id must be greater than zero");
     }
-    new GroundyServiceConnection(context, groundyServiceClass) {
+    new ServiceOperation(context, groundyServiceClass) {
       @Override
-      protected void onGroundyServiceBound(GroundyService.GroundyServiceBinder binder) {
+      public void onGroundyServiceBound(GroundyService.GroundyServiceBinder binder) {
         GroundyService.CancelGroupResponse cancelGroupResponse =
             binder.cancelTasks(groupId, reason);
         if (cancelListener != null) {
@@ -148,9 +151,9 @@ public final class GroundyManager {
                                      final OnAttachListener onAttachListener,
                                      final Class<? extends GroundyTask> task,
                                      final Object... callbacks) {
-    new GroundyServiceConnection(context, groundyServiceClass) {
+    new ServiceOperation(context, groundyServiceClass) {
       @Override
-      protected void onGroundyServiceBound(GroundyService.GroundyServiceBinder binder) {
+      public void onGroundyServiceBound(GroundyService.GroundyServiceBinder binder) {
         List<TaskHandler> taskHandlers = binder.attachCallbacks(task, callbacks);
         if (onAttachListener != null) {
           onAttachListener.attachePerformed(task, taskHandlers);
@@ -159,43 +162,216 @@ public final class GroundyManager {
     }.start();
   }
 
+  /**
+   * Cancels several tasks at once, in a single call to the service.
+   *
+   * @param context used to interact with the service
+   * @param ids ids of the tasks to cancel
+   * @param reason reason to cancel them
+   * @param cancelListener callback for the aggregated cancel result
+   */
+  public static void cancelTasksById(Context context, Collection<Long> ids, int reason,
+      BulkCancelListener cancelListener) {
+    cancelTasksById(context, GroundyService.class, ids, reason, cancelListener);
+  }
+
+  /**
+   * Cancels several tasks at once, in a single call to the service.
+   *
+   * @param context used to interact with the service
+   * @param groundyServiceClass custom groundy service implementation
+   * @param ids ids of the tasks to cancel
+   * @param reason reason to cancel them
+   * @param cancelListener callback for the aggregated cancel result
+   */
+  public static void cancelTasksById(Context context,
+      Class<? extends GroundyService> groundyServiceClass, Collection<Long> ids, final int reason,
+      final BulkCancelListener cancelListener) {
+    if (ids == null) {
+      throw new IllegalArgumentException("ids cannot be null");
+    }
+    // the operation may run later, when the service is connected
+    final List<Long> taskIds = new ArrayList<Long>(ids);
+    new ServiceOperation(context, groundyServiceClass) {
+      @Override
+      public void onGroundyServiceBound(GroundyService.GroundyServiceBinder binder) {
+        GroundyService.CancelGroupResponse cancelResponse =
+            binder.cancelTasksById(taskIds, reason);
+        if (cancelListener != null) {
+          cancelListener.onCancelResult(cancelResponse);
+        }
+      }
+    }.start();
+  }
+
+  /**
+   * Cancels all the tasks of the specified type, running or queued.
+   *
+   * @param context used to interact with the service
+   * @param task type of the tasks to cancel
+   * @param reason reason to cancel them
+   * @param cancelListener callback for the aggregated cancel result
+   */
+  public static void cancelTasksByClass(Context context, Class<? extends GroundyTask> task,
+      int reason, BulkCancelListener cancelListener) {
+    cancelTasksByClass(context, GroundyService.class, task, reason, cancelListener);
+  }
+
+  /**
+   * Cancels all the tasks of the specified type, running or queued.
+   *
+   * @param context used to interact with the service
+   * @param groundyServiceClass custom groundy service implementation
+   * @param task type of the tasks to cancel
+   * @param reason reason to cancel them
+   * @param cancelListener callback for the aggregated cancel result
+   */
+  public static void cancelTasksByClass(Context context,
+      Class<? extends GroundyService> groundyServiceClass,
+      final Class<? extends GroundyTask> task, final int reason,
+      final BulkCancelListener cancelListener) {
+    new ServiceOperation(context, groundyServiceClass) {
+      @Override
+      public void onGroundyServiceBound(GroundyService.GroundyServiceBinder binder) {
+        GroundyService.CancelGroupResponse cancelResponse = binder.cancelTasksByClass(task, reason);
+        if (cancelListener != null) {
+          cancelListener.onCancelResult(cancelResponse);
+        }
+      }
+    }.start();
+  }
+
+  /**
+   * Attaches callbacks to several tasks at once, in a single call to the service. Tasks that
+   * finished recently without anybody receiving their result get it replayed.
+   *
+   * @param context used to interact with the service
+   * @param ids ids of the tasks
+   * @param onAttachListener receives a handler for each task found
+   * @param callbacks callback handlers
+   */
+  public static void attachCallbacks(Context context, Collection<Long> ids,
+      OnBulkAttachListener onAttachListener, Object... callbacks) {
+    attachCallbacks(context, GroundyService.class, ids, onAttachListener, callbacks);
+  }
+
+  /**
+   * Attaches callbacks to several tasks at once, in a single call to the service. Tasks that
+   * finished recently without anybody receiving their result get it replayed.
+   *
+   * @param context used to interact with the service
+   * @param groundyServiceClass custom groundy service implementation
+   * @param ids ids of the tasks
+   * @param onAttachListener receives a handler for each task found
+   * @param callbacks callback handlers
+   */
+  public static void attachCallbacks(Context context,
+      Class<? extends GroundyService> groundyServiceClass, Collection<Long> ids,
+      final OnBulkAttachListener onAttachListener, final Object... callbacks) {
+    if (ids == null) {
+      throw new IllegalArgumentException("ids cannot be null");
+    }
+    final List<Long> taskIds = new ArrayList<Long>(ids);
+    new ServiceOperation(context, groundyServiceClass) {
+      @Override
+      public void onGroundyServiceBound(GroundyService.GroundyServiceBinder binder) {
+        List<TaskHandler> taskHandlers = binder.attachCallbacks(taskIds, callbacks);
+        if (onAttachListener != null) {
+          onAttachListener.attachPerformed(taskHandlers);
+        }
+      }
+    }.start();
+  }
+
+  /**
+   * Takes a snapshot of the queued and running tasks of the default groundy service.
+   *
+   * @param context used to interact with the service
+   * @param snapshotListener receives the snapshot
+   */
+  public static void getSnapshot(Context context, SnapshotListener snapshotListener) {
+    getSnapshot(context, GroundyService.class, snapshotListener);
+  }
+
+  /**
+   * Takes a snapshot of the queued and running tasks, along with counters aggregated since the
+   * service was created. The service is neither started nor bound: if it is not running in this
+   * process, the snapshot is empty. The snapshot is delivered on the main thread.
+   *
+   * @param context any context of the application
+   * @param groundyServiceClass custom groundy service implementation
+   * @param snapshotListener receives the snapshot
+   */
+  public static void getSnapshot(Context context,
+      Class<? extends GroundyService> groundyServiceClass,
+      final SnapshotListener snapshotListener) {
+    if (snapshotListener == null) {
+      throw new IllegalArgumentException("snapshotListener cannot be null");
+    }
+    final GroundySnapshot snapshot = GroundyService.takeSnapshot(groundyServiceClass);
+    if (Looper.myLooper() == Looper.getMainLooper()) {
+      snapshotListener.onSnapshot(snapshot);
+      return;
+    }
+    new Handler(Looper.getMainLooper()).post(new Runnable() {
+      @Override public void run() {
+        snapshotListener.onSnapshot(snapshot);
+      }
+    });
+  }
+
+  /**
+   * Releases the metadata Groundy caches about callback handlers (e.g. for handlers that belong
+   * to activities no longer in use) and the expired callbacks kept to be replayed. Groundy
+   * services do this on their own, but the caches of the process delivering the callbacks may
+   * need it as well, e.g. from {@code Application.onTrimMemory}.
+   *
+   * @param level trim level as received by onTrimMemory
+   */
+  public static void trimMemory(int level) {
+    MetadataCache.trim(level);
+    ReplayBuffer.trim(level);
+  }
+
+  /**
+   * Callbacks verify the type of each value they receive. Generated callbacks for tasks that
+   * declare their keys with {@link com.telly.groundy.annotations.Keys} are verified at compile
+   * time, so if those tasks really send the declared types the checks can be skipped. Callbacks
+   * dispatched through reflection, e.g. anonymous ones, are always checked.
+   *
+   * @param trusted true to skip runtime type checks of callbacks verified at compile time
+   */
+  public static void setTrustedDispatch(boolean trusted) {
+    trustedDispatch = trusted;
+  }
+
+  /** @return true if callbacks verified at compile time skip runtime type checks */
+  public static boolean isTrustedDispatch() {
+    return trustedDispatch;
+  }
+
   public static void setLogEnabled(boolean enabled) {
     L.logEnabled = enabled;
   }
 
-  private abstract static class GroundyServiceConnection implements ServiceConnection {
+  /** An operation run through the shared connection to a groundy service. */
+  private abstract static class ServiceOperation implements GroundyServiceConnector.Operation {
     private final Context mContext;
     private boolean mAlreadyStarted;
     private final Class<? extends GroundyService> mGroundyServiceClass;
 
-    GroundyServiceConnection(Context context, Class<? extends GroundyService> groundyServiceClass) {
-      mContext = context.getApplicationContext();
+    ServiceOperation(Context context, Class<? extends GroundyService> groundyServiceClass) {
+      mContext = context;
       mGroundyServiceClass = groundyServiceClass;
     }
 
-    @Override
-    public final void onServiceConnected(ComponentName name, IBinder service) {
-      if (service instanceof GroundyService.GroundyServiceBinder) {
-        GroundyService.GroundyServiceBinder binder = (GroundyService.GroundyServiceBinder) service;
-        onGroundyServiceBound(binder);
-      }
-      mContext.unbindService(this);
-    }
-
-    @Override
-    public void onServiceDisconnected(ComponentName name) {
-    }
-
     void start() {
       if (mAlreadyStarted) {
-        throw new IllegalStateException("Trying to use already started groundy service connector");
+        throw new IllegalStateException("Trying to use already started groundy service operation");
       }
       mAlreadyStarted = true;
-      Intent intent = new Intent(mContext, mGroundyServiceClass);
-      mContext.bindService(intent, this, Context.BIND_AUTO_CREATE);
+      GroundyServiceConnector.get(mContext, mGroundyServiceClass).execute(this);
     }
-
-    protected abstract void onGroundyServiceBound(GroundyService.GroundyServiceBinder binder);
   }
 
   public interface CancelListener {
@@ -211,6 +387,25 @@ public final class GroundyManager {
     void onCancelResult(long id, int result);
   }
 
+  public interface BulkCancelListener {
+    /**
+     * @param cancelResponse the tasks interrupted and the ones that did not run yet; ids of
+     * unknown or finished tasks are in neither
+     */
+    void onCancelResult(GroundyService.CancelGroupResponse cancelResponse);
+  }
+
+  public interface SnapshotListener {
+    /** @param snapshot state of the service tasks */
+    void onSnapshot(GroundySnapshot snapshot);
+  }
+
+  /** Listens for results of the callback attachment to a set of tasks. */
+  public interface OnBulkAttachListener {
+    /** @param taskHandlers task handlers for each groundy task that we attached to */
+    void attachPerformed(List<TaskHandler> taskHandlers);
+  }
+
   /** Listens for results of the callback attachment. */
   public interface OnAttachListener {
     /**
@@ -36,21 +36,21 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
 import android.os.ResultReceiver;
-
-import com.telly.groundy.annotations.OnCancel;
-import com.telly.groundy.annotations.OnFailure;
-import com.telly.groundy.annotations.OnStart;
-import com.telly.groundy.annotations.OnSuccess;
+import android.os.SystemClock;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This service executes tasks dispatched to Groundy. By default, it creates a new {@link Thread}
@@ -91,6 +91,10 @@ public class GroundyService extends Service {
 
   private static enum GroundyMode {QUEUE, ASYNC}
 
+  /** Created services of this process, so that snapshots don't need to bind to them. */
+  private static final Map<Class<? extends GroundyService>, GroundyService> CREATED_SERVICES =
+      new ConcurrentHashMap<Class<? extends GroundyService>, GroundyService>();
+
   public static final String KEY_MODE = "groundy:mode";
   public static final String KEY_FORCE_QUEUE_COMPLETION = "groundy:force_queue_completion";
   private final GroundyServiceBinder mBinder = new GroundyServiceBinder();
@@ -106,6 +110,11 @@ public class GroundyService extends Service {
 
   // this help us keep track of the tasks that are scheduled to be executed
   private final SortedMap<Long, GroundyTask> mTasksSet;
+  // aggregated for snapshots
+  private final AtomicLong mEnqueuedCount = new AtomicLong();
+  private final AtomicLong mSucceededCount = new AtomicLong();
+  private final AtomicLong mFailedCount = new AtomicLong();
+  private final AtomicLong mCancelledCount = new AtomicLong();
 
   public GroundyService() {
     mWakeLockHelper = new WakeLockHelper(this);
@@ -116,12 +125,19 @@ public class GroundyService extends Service {
   public void onCreate() {
     super.onCreate();
     updateModeFromMetadata();
+    CREATED_SERVICES.put(getClass(), this);
 
     HandlerThread thread = new HandlerThread("SyncGroundyService");
     thread.start();
 
     mGroundyLooper = thread.getLooper();
     mGroundyHandler = new GroundyHandler(mGroundyLooper);
+    mGroundyHandler.post(new Runnable() {
+      @Override public void run() {
+        // payloads whose tasks or receivers went away are never released
+        PayloadStore.sweep(GroundyService.this);
+      }
+    });
   }
 
   @Override
@@ -160,10 +176,27 @@ public class GroundyService extends Service {
   @Override
   public void onDestroy() {
     super.onDestroy();
+    CREATED_SERVICES.remove(getClass());
     mGroundyLooper.quit();
     internalQuit(GroundyTask.SERVICE_DESTROYED);
   }
 
+  @Override
+  public void onLowMemory() {
+    super.onLowMemory();
+    MetadataCache.clear();
+    ReplayBuffer.trim(ReplayBuffer.TRIM_MEMORY_COMPLETE);
+  }
+
+  /**
+   * Releases cached callbacks metadata and stale replayable callbacks. It is not annotated with
+   * {@code @Override} since it is only called by platforms that support it.
+   */
+  public void onTrimMemory(int level) {
+    MetadataCache.trim(level);
+    ReplayBuffer.trim(level);
+  }
+
   @Override
   public IBinder onBind(Intent intent) {
     return mBinder;
@@ -181,8 +214,13 @@ public class GroundyService extends Service {
     int groupId = intent.getIntExtra(Groundy.KEY_GROUP_ID, DEFAULT_GROUP_ID);
     final boolean redelivery = flags == START_FLAG_REDELIVERY;
     final GroundyTask groundyTask = buildGroundyTask(intent, groupId, startId, redelivery);
+    if (groundyTask != null) {
+      groundyTask.setEnqueuedAt(SystemClock.elapsedRealtime());
+    }
     mTasksSet.put(taskId, groundyTask);
-    if (!groundyHandler.sendMessage(msg)) {
+    if (groundyHandler.sendMessage(msg)) {
+      mEnqueuedCount.incrementAndGet();
+    } else {
       mTasksSet.remove(taskId);
     }
   }
@@ -220,6 +258,98 @@ public class GroundyService extends Service {
     return INTERRUPTED;
   }
 
+  /**
+   * @param ids ids of the tasks to cancel
+   * @param reason reason to cancel them
+   * @return the tasks interrupted and the ones that did not run yet; unknown ids are in neither
+   */
+  private CancelGroupResponse cancelTasksById(Collection<Long> ids, int reason) {
+    if (reason == Integer.MIN_VALUE) {
+      throw new IllegalArgumentException("reason cannot be Integer.MIN_VALUE");
+    }
+
+    Set<Long> notExecutedTasks = new HashSet<Long>();
+    Set<Long> interruptedTasks = new HashSet<Long>();
+    synchronized (mTasksSet) {
+      for (Long id : ids) {
+        GroundyTask groundyTask = mTasksSet.remove(id);
+        if (groundyTask == null) {
+          continue;
+        }
+        if (!groundyTask.alreadyExecuted()) {
+          notExecutedTasks.add(id);
+        } else {
+          groundyTask.stopTask(reason);
+          interruptedTasks.add(id);
+        }
+      }
+    }
+    return new CancelGroupResponse(interruptedTasks, notExecutedTasks);
+  }
+
+  /**
+   * @param task type of the tasks to cancel
+   * @param reason reason to cancel them
+   * @return the tasks interrupted and the ones that did not run yet
+   */
+  private CancelGroupResponse cancelTasksByClass(Class<? extends GroundyTask> task, int reason) {
+    if (reason == Integer.MIN_VALUE) {
+      throw new IllegalArgumentException("reason cannot be Integer.MIN_VALUE");
+    }
+
+    Set<Long> notExecutedTasks = new HashSet<Long>();
+    Set<Long> interruptedTasks = new HashSet<Long>();
+    synchronized (mTasksSet) {
+      Iterator<Map.Entry<Long, GroundyTask>> iterator = mTasksSet.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<Long, GroundyTask> taskEntry = iterator.next();
+        GroundyTask groundyTask = taskEntry.getValue();
+        if (groundyTask.getClass() != task) {
+          continue;
+        }
+        iterator.remove();
+        if (!groundyTask.alreadyExecuted()) {
+          notExecutedTasks.add(taskEntry.getKey());
+        } else {
+          groundyTask.stopTask(reason);
+          interruptedTasks.add(taskEntry.getKey());
+        }
+      }
+    }
+    return new CancelGroupResponse(interruptedTasks, notExecutedTasks);
+  }
+
+  /**
+   * @param ids ids of the tasks to attach the callbacks to
+   * @param callbacks callback handlers
+   * @return a handler for each task found, running or finished recently without anybody
+   *         receiving its result
+   */
+  private List<TaskHandler> attachCallbacks(Collection<Long> ids, Object... callbacks) {
+    List<TaskHandler> handlers = new ArrayList<TaskHandler>();
+    synchronized (mTasksSet) {
+      for (Long id : ids) {
+        GroundyTask groundyTask = mTasksSet.get(id);
+        Class<? extends GroundyTask> task = groundyTask != null
+            ? groundyTask.getClass() : ReplayBuffer.finishedTaskType(id);
+        if (task == null) {
+          continue;
+        }
+
+        final CallbacksReceiver receiver = new CallbacksReceiver(task, callbacks);
+        receiver.setTaskId(id);
+        if (groundyTask != null) {
+          receiver.setOriginalParams(groundyTask.getArgs());
+          groundyTask.appendReceiver(receiver);
+        }
+        receiver.replayMissedCallbacks();
+        handlers.add(new AttachedTaskHandlerImpl(id, GroundyService.this.getClass(), receiver,
+            task));
+      }
+    }
+    return handlers;
+  }
+
   private List<TaskHandler> attachCallbacks(Class<? extends GroundyTask> task,
                                             Object... callbacks) {
     List<TaskHandler> handlers = new ArrayList<TaskHandler>();
@@ -227,6 +357,9 @@ public class GroundyService extends Service {
       for (GroundyTask groundyTask : mTasksSet.values()) {
         if (groundyTask.getClass() == task) {
           final CallbacksReceiver receiver = new CallbacksReceiver(task, callbacks);
+          receiver.setOriginalParams(groundyTask.getArgs());
+          receiver.setTaskId(groundyTask.getId());
+          receiver.replayMissedCallbacks();
           groundyTask.appendReceiver(receiver);
 
           AttachedTaskHandlerImpl taskHandler =
@@ -236,6 +369,18 @@ public class GroundyService extends Service {
         }
       }
     }
+
+    // tasks that finished recently without anybody receiving their results
+    for (Long taskId : ReplayBuffer.finishedTasks(task)) {
+      if (mTasksSet.containsKey(taskId)) {
+        continue;
+      }
+      final CallbacksReceiver receiver = new CallbacksReceiver(task, callbacks);
+      receiver.setTaskId(taskId);
+      receiver.replayMissedCallbacks();
+      handlers.add(new AttachedTaskHandlerImpl(taskId, GroundyService.this.getClass(), receiver,
+          task));
+    }
     return handlers;
   }
 
@@ -287,6 +432,35 @@ public class GroundyService extends Service {
     return new CancelGroupResponse(interruptedTasks, notExecutedTasks);
   }
 
+  /**
+   * @param serviceClass the service to take the snapshot of
+   * @return a snapshot of the service if it is created in this process, an empty one otherwise
+   */
+  static GroundySnapshot takeSnapshot(Class<? extends GroundyService> serviceClass) {
+    GroundyService service = CREATED_SERVICES.get(serviceClass);
+    return service != null ? service.takeSnapshot() : GroundySnapshot.empty();
+  }
+
+  /**
+   * The fields of the tasks are read while holding the lock of the task list: cached instances are
+   * only reset and reused once removed from it, so each info describes a single execution. Only
+   * plain fields are read, so taking snapshots barely holds back scheduling.
+   */
+  private GroundySnapshot takeSnapshot() {
+    List<TaskInfo> taskInfos;
+    synchronized (mTasksSet) {
+      taskInfos = new ArrayList<TaskInfo>(mTasksSet.size());
+      for (GroundyTask task : mTasksSet.values()) {
+        // tasks that could not be created are tracked as null until their message is handled
+        if (task != null) {
+          taskInfos.add(new TaskInfo(task));
+        }
+      }
+    }
+    return new GroundySnapshot(Collections.unmodifiableList(taskInfos), mEnqueuedCount.get(),
+        mSucceededCount.get(), mFailedCount.get(), mCancelledCount.get());
+  }
+
   public static class CancelGroupResponse {
     private final Set<Long> mInterruptedTasks;
     private final Set<Long> mNotExecutedTasks;
@@ -343,6 +517,8 @@ public class GroundyService extends Service {
     if (groundyTask == null) {
       return;
     }
+    // done here instead of when the intent arrives since it reads files on large payloads
+    groundyTask.setPayloadFiles(PayloadStore.attach(groundyTask.getArgs()));
     boolean requiresWifi = groundyTask.keepWifiOn();
     if (requiresWifi) {
       mWakeLockHelper.acquire();
@@ -369,23 +545,32 @@ public class GroundyService extends Service {
       mWakeLockHelper.release();
     }
 
-    //Lets try to send back the response
+    //Lets try to send back the response; receivers already hold the original params
     Bundle resultData = taskResult.getResultData();
-    resultData.putBundle(Groundy.ORIGINAL_PARAMS, groundyTask.getArgs());
-    resultData.putSerializable(Groundy.TASK_IMPLEMENTATION, groundyTask.getClass());
 
+    int callbackType;
     switch (taskResult.getType()) {
       case SUCCESS:
-        groundyTask.send(OnSuccess.class, resultData);
+        callbackType = CallbackTypes.SUCCESS;
+        mSucceededCount.incrementAndGet();
         break;
       case FAIL:
-        groundyTask.send(OnFailure.class, resultData);
+        callbackType = CallbackTypes.FAILURE;
+        mFailedCount.incrementAndGet();
         break;
-      case CANCEL:
+      default:
+        callbackType = CallbackTypes.CANCEL;
+        mCancelledCount.incrementAndGet();
         resultData.putInt(Groundy.CANCEL_REASON, groundyTask.getQuittingReason());
-        groundyTask.send(OnCancel.class, resultData);
         break;
     }
+    groundyTask.send(callbackType, resultData);
+    PayloadStore.release(groundyTask.getPayloadFiles());
+    if (!groundyTask.hasReceivers()) {
+      // kept in case handlers are attached late; receivers keep what they miss themselves
+      ReplayBuffer.recordMissed(groundyTask.getId(), groundyTask.getClass(), callbackType,
+          resultData);
+    }
   }
 
   private GroundyTask buildGroundyTask(Intent intent, int groupId, int startId,
@@ -398,6 +583,12 @@ public class GroundyService extends Service {
     GroundyTask groundyTask = GroundyTaskFactory.get((Class<? extends GroundyTask>) taskName, this);
     if (groundyTask == null) {
       L.e(TAG, "Groundy value no provided");
+      final Bundle args = extras.getBundle(Groundy.KEY_ARGUMENTS);
+      mGroundyHandler.post(new Runnable() {
+        @Override public void run() {
+          PayloadStore.discard(args);
+        }
+      });
       return null;
     }
     final long taskId = extras.getLong(Groundy.TASK_ID);
@@ -405,17 +596,26 @@ public class GroundyService extends Service {
 
     // set up the result receiver(s)
     ResultReceiver receiver = (ResultReceiver) extras.get(Groundy.KEY_RECEIVER);
+    CallbacksReceiver localReceiver =
+        CallbacksReceiver.findLocal(extras.getLong(Groundy.KEY_RECEIVER_ID));
+    if (localReceiver != null) {
+      // the receiver lives in this process, no need to go through the binder
+      receiver = localReceiver;
+    }
     if (receiver != null) {
       groundyTask.setReceiver(receiver);
     }
-    final Bundle resultData = new Bundle();
-    resultData.putSerializable(Groundy.TASK_IMPLEMENTATION, getClass());
-    groundyTask.send(OnStart.class, resultData);
+    groundyTask.send(CallbackTypes.START, new Bundle());
 
     groundyTask.setStartId(startId);
     groundyTask.setGroupId(groupId);
     groundyTask.setRedelivered(redelivery);
+    // large payloads are read on the task's thread, see onHandleIntent
     groundyTask.addArgs(extras.getBundle(Groundy.KEY_ARGUMENTS));
+    TaskArgs taskArgs = extras.getParcelable(Groundy.KEY_TYPED_ARGS);
+    if (taskArgs != null) {
+      groundyTask.injectArgs(taskArgs);
+    }
     if (Groundy.devMode) {
       Object[] rawElements = (Object[]) extras.getSerializable(Groundy.STACK_TRACE);
       if (rawElements != null) {
@@ -482,12 +682,17 @@ public class GroundyService extends Service {
       if (groundyTask != null) {
         groundyTask.flagAsExecuted();
         onHandleIntent(groundyTask);
-        mTasksSet.remove(taskId);
+        boolean stillTracked = mTasksSet.remove(taskId) == groundyTask;
 
         if (mMode == GroundyMode.QUEUE) {
           // when in queue mode, we must stop each intent received
           stopSelf(groundyTask.getStartId());
         }
+
+        // tasks removed by a cancellation could still be referenced by it, don't reuse them
+        if (stillTracked) {
+          GroundyTaskFactory.release(groundyTask);
+        }
       }
 
       if (mTasksSet.isEmpty()) {
@@ -525,5 +730,27 @@ public class GroundyService extends Service {
                                       Object... callbacks) {
       return GroundyService.this.attachCallbacks(task, callbacks);
     }
+
+    /**
+     * @param ids ids of the tasks to cancel
+     * @param reason reason to cancel them
+     * @return the tasks interrupted and the ones that did not run yet
+     */
+    CancelGroupResponse cancelTasksById(Collection<Long> ids, int reason) {
+      return GroundyService.this.cancelTasksById(ids, reason);
+    }
+
+    /**
+     * @param task type of the tasks to cancel
+     * @param reason reason to cancel them
+     * @return the tasks interrupted and the ones that did not run yet
+     */
+    CancelGroupResponse cancelTasksByClass(Class<? extends GroundyTask> task, int reason) {
+      return GroundyService.this.cancelTasksByClass(task, reason);
+    }
+
+    List<TaskHandler> attachCallbacks(Collection<Long> ids, Object... callbacks) {
+      return GroundyService.this.attachCallbacks(ids, callbacks);
+    }
   }
 }
@@ -0,0 +1,214 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.telly.groundy;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shared, reference counted connection to a groundy service. It binds when the first operation
+ * arrives, queues operations until connected and stays bound while there are operations pending;
+ * it unbinds once it has been idle for {@link #LINGER} milliseconds, so that bursts of operations
+ * share a single bind. Services running in another process can't be managed, and their
+ * operations are dropped.
+ */
+final class GroundyServiceConnector implements ServiceConnection {
+
+  private static final String TAG = "groundy:connector";
+  /** Time in milliseconds the connection is kept after the last operation. */
+  static final long LINGER = 5000;
+
+  /** Guarded by the class. */
+  private static final Map<Class<? extends GroundyService>, GroundyServiceConnector> CONNECTORS =
+      new HashMap<Class<? extends GroundyService>, GroundyServiceConnector>();
+
+  private final Context mContext;
+  private final Class<? extends GroundyService> mGroundyServiceClass;
+  private final Handler mMainHandler;
+  private final Runnable mUnbind = new Runnable() {
+    @Override public void run() {
+      unbindIfIdle();
+    }
+  };
+
+  // guarded by this
+  private final List<Operation> mPending = new ArrayList<Operation>();
+  private GroundyService.GroundyServiceBinder mBinder;
+  private int mOperations;
+  private boolean mBound;
+  /** Set once the service turned out to run in another process, so it can't be managed. */
+  private boolean mUnreachable;
+
+  private GroundyServiceConnector(Context context,
+      Class<? extends GroundyService> groundyServiceClass) {
+    mContext = context.getApplicationContext();
+    mGroundyServiceClass = groundyServiceClass;
+    mMainHandler = new Handler(Looper.getMainLooper());
+  }
+
+  /**
+   * @param context any context of the application
+   * @param groundyServiceClass the service to connect to
+   * @return the connector of that service
+   */
+  static synchronized GroundyServiceConnector get(Context context,
+      Class<? extends GroundyService> groundyServiceClass) {
+    GroundyServiceConnector connector = CONNECTORS.get(groundyServiceClass);
+    if (connector == null) {
+      connector = new GroundyServiceConnector(context, groundyServiceClass);
+      CONNECTORS.put(groundyServiceClass, connector);
+    }
+    return connector;
+  }
+
+  /**
+   * Runs the operation on the main thread as soon as the service is connected.
+   *
+   * @param operation the operation to run
+   */
+  void execute(Operation operation) {
+    GroundyService.GroundyServiceBinder binder;
+    synchronized (this) {
+      if (mUnreachable) {
+        L.e(TAG, mGroundyServiceClass + " can only be managed from its own process");
+        return;
+      }
+      mMainHandler.removeCallbacks(mUnbind);
+      mOperations++;
+      binder = mBinder;
+      if (binder == null) {
+        mPending.add(operation);
+        if (!mBound) {
+          bind();
+        }
+        return;
+      }
+    }
+
+    if (Looper.myLooper() == Looper.getMainLooper()) {
+      run(operation, binder);
+    } else {
+      postRun(operation, binder);
+    }
+  }
+
+  private void postRun(final Operation operation,
+      final GroundyService.GroundyServiceBinder binder) {
+    mMainHandler.post(new Runnable() {
+      @Override public void run() {
+        GroundyServiceConnector.this.run(operation, binder);
+      }
+    });
+  }
+
+  private void bind() {
+    Intent intent = new Intent(mContext, mGroundyServiceClass);
+    mBound = mContext.bindService(intent, this, Context.BIND_AUTO_CREATE);
+    if (!mBound) {
+      L.e(TAG, "Could not bind to " + mGroundyServiceClass);
+      mOperations -= mPending.size();
+      mPending.clear();
+    }
+  }
+
+  private void run(Operation operation, GroundyService.GroundyServiceBinder binder) {
+    try {
+      operation.onGroundyServiceBound(binder);
+    } finally {
+      operationDone();
+    }
+  }
+
+  private synchronized void operationDone() {
+    mOperations--;
+    if (mOperations == 0) {
+      mMainHandler.postDelayed(mUnbind, LINGER);
+    }
+  }
+
+  private synchronized void unbindIfIdle() {
+    if (mOperations > 0 || !mBound) {
+      return;
+    }
+    // unbound while holding the lock, so that a new operation can't bind in between
+    mBound = false;
+    mBinder = null;
+    mContext.unbindService(this);
+  }
+
+  @Override
+  public void onServiceConnected(ComponentName name, IBinder service) {
+    List<Operation> pending;
+    GroundyService.GroundyServiceBinder binder;
+    synchronized (this) {
+      if (!(service instanceof GroundyService.GroundyServiceBinder)) {
+        // e.g. the service runs in another process; its operations can never run
+        L.e(TAG, mGroundyServiceClass + " can only be managed from its own process");
+        mUnreachable = true;
+        mOperations -= mPending.size();
+        mPending.clear();
+        mBound = false;
+        mContext.unbindService(this);
+        return;
+      }
+      pending = new ArrayList<Operation>(mPending);
+      mPending.clear();
+      binder = (GroundyService.GroundyServiceBinder) service;
+      mBinder = binder;
+    }
+
+    for (Operation operation : pending) {
+      try {
+        run(operation, binder);
+      } catch (RuntimeException e) {
+        // the rest of the operations must still run, or the connection would never be released
+        L.e(TAG, "Operation on " + mGroundyServiceClass + " failed", e);
+      }
+    }
+  }
+
+  @Override
+  public void onServiceDisconnected(ComponentName name) {
+    // the service crashed; operations wait until the system binds it again
+    synchronized (this) {
+      mBinder = null;
+    }
+  }
+
+  /** An operation to run with the binder of the service. */
+  interface Operation {
+    /** @param binder the binder of the connected service */
+    void onGroundyServiceBound(GroundyService.GroundyServiceBinder binder);
+  }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.telly.groundy;
+
+import android.os.SystemClock;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Point in time view of the tasks a {@link GroundyService} holds, plus counters aggregated since
+ * the service was created. Taking one only reads a few fields of each task and never starts the
+ * service, so it is cheap enough to poll, e.g. from a debug overlay.
+ *
+ * @see GroundyManager#getSnapshot(android.content.Context, GroundyManager.SnapshotListener)
+ */
+public final class GroundySnapshot {
+  private final List<TaskInfo> mTasks;
+  private final long mTakenAt;
+  private final int mQueuedCount;
+  private final int mRunningCount;
+  private final long mEnqueuedCount;
+  private final long mSucceededCount;
+  private final long mFailedCount;
+  private final long mCancelledCount;
+
+  GroundySnapshot(List<TaskInfo> tasks, long enqueuedCount, long succeededCount, long failedCount,
+      long cancelledCount) {
+    mTasks = tasks;
+    mTakenAt = SystemClock.elapsedRealtime();
+    int running = 0;
+    for (TaskInfo task : tasks) {
+      if (task.getState() == TaskInfo.State.RUNNING) {
+        running++;
+      }
+    }
+    mRunningCount = running;
+    mQueuedCount = tasks.size() - running;
+    mEnqueuedCount = enqueuedCount;
+    mSucceededCount = succeededCount;
+    mFailedCount = failedCount;
+    mCancelledCount = cancelledCount;
+  }
+
+  /** @return a snapshot without tasks, for services that are not running */
+  static GroundySnapshot empty() {
+    return new GroundySnapshot(Collections.<TaskInfo>emptyList(), 0, 0, 0, 0);
+  }
+
+  /** @return queued and running tasks, ordered by id */
+  public List<TaskInfo> getTasks() {
+    return mTasks;
+  }
+
+  /** @return when the snapshot was taken, in the {@link SystemClock#elapsedRealtime()} base */
+  public long getTakenAt() {
+    return mTakenAt;
+  }
+
+  public int getQueuedCount() {
+    return mQueuedCount;
+  }
+
+  public int getRunningCount() {
+    return mRunningCount;
+  }
+
+  /** @return tasks scheduled since the service was created */
+  public long getEnqueuedCount() {
+    return mEnqueuedCount;
+  }
+
+  public long getSucceededCount() {
+    return mSucceededCount;
+  }
+
+  public long getFailedCount() {
+    return mFailedCount;
+  }
+
+  /** @return tasks that finished cancelled; tasks removed before they ran are not counted */
+  public long getCancelledCount() {
+    return mCancelledCount;
+  }
+
+  @Override public String toString() {
+    return "GroundySnapshot{queued=" + mQueuedCount + ", running=" + mRunningCount
+        + ", enqueued=" + mEnqueuedCount + ", succeeded=" + mSucceededCount + ", failed="
+        + mFailedCount + ", cancelled=" + mCancelledCount + '}';
+  }
+}
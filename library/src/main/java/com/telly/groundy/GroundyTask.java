@@ -26,21 +26,30 @@ package com.telly.groundy;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ResultReceiver;
-import com.telly.groundy.annotations.OnCallback;
-import com.telly.groundy.annotations.OnProgress;
-import java.lang.annotation.Annotation;
+import android.os.SystemClock;
 import java.util.ArrayList;
+import java.util.List;
 
 /** Implementation of this class get executed by the {@link GroundyService}. */
 public abstract class GroundyTask {
   protected static final int CANCEL_ALL = -1;
   protected static final int SERVICE_DESTROYED = -2;
   protected static final int CANCEL_BY_GROUP = -3;
+  protected static final int CANCEL_BY_FUTURE = -4;
+  protected static final int CANCEL_BY_SUBSCRIPTION = -5;
+  /** Default amount of chunks that can be waiting for the consumer. */
+  protected static final int DEFAULT_STREAM_CAPACITY = 4;
+  /** Default minimum time in milliseconds between two progress updates. */
+  protected static final long DEFAULT_PROGRESS_INTERVAL = 100;
   static final int RESULT_CODE_CALLBACK_ANNOTATION = 888;
+  /** Sends progress held back by throttling once the interval expires. */
+  private static final Handler PROGRESS_FLUSHER = new Handler(Looper.getMainLooper());
 
   private Context mContext;
-  private final Bundle mArgs = new Bundle();
+  private Bundle mArgs = new Bundle();
   private int mStartId;
   private ResultReceiver mReceiver;
   private volatile int mQuittingReason = Integer.MIN_VALUE;
@@ -50,7 +59,27 @@ public abstract class GroundyTask {
   private StackTraceElement[] mStackTrace;
   private Intent mIntent;
   private ArrayList<ResultReceiver> mExtraReceivers;
+  private List<String> mPayloadFiles;
+  private TaskArgs mInjectedArgs;
   private boolean mExecuted;
+  private StreamChannel mStreamChannel;
+  private boolean mProgressSent;
+  private int mLastProgress;
+  private long mLastProgressTime;
+  // progress state is guarded by mProgressLock since delayed flushes run on the main thread
+  private final Object mProgressLock = new Object();
+  private boolean mHasPendingProgress;
+  private int mPendingProgress;
+  private boolean mFlushScheduled;
+  private final Runnable mFlushProgress = new Runnable() {
+    @Override public void run() {
+      flushProgress();
+    }
+  };
+  // read by service snapshots from other threads
+  private volatile int mReportedProgress = -1;
+  private volatile long mEnqueuedAt;
+  private volatile long mStartedAt;
 
   /** Creates a GroundyTask composed of. */
   public GroundyTask() {
@@ -139,6 +168,12 @@ public abstract class GroundyTask {
     }
   }
 
+  /** Assigns typed arguments; they are cleared by {@link #reset()} if this instance is reused. */
+  void injectArgs(TaskArgs taskArgs) {
+    taskArgs.injectInto(this);
+    mInjectedArgs = taskArgs;
+  }
+
   protected Bundle getArgs() {
     return mArgs;
   }
@@ -205,22 +240,39 @@ public abstract class GroundyTask {
     mReceiver = receiver;
   }
 
-  void send(Class<? extends Annotation> callbackAnnotation, Bundle resultData) {
-    internalSend(mReceiver, resultData, callbackAnnotation);
+  /**
+   * @param callbackType the {@link CallbackTypes} id of the callback to invoke
+   * @param resultData the callback data
+   */
+  void send(int callbackType, Bundle resultData) {
+    if (callbackType != CallbackTypes.PROGRESS) {
+      // progress held back must reach the receivers before any later callback, and the delayed
+      // flush runs on the main thread, so it is sent from this thread first
+      flushProgress();
+    }
+    internalSend(mReceiver, resultData, callbackType);
     if (mExtraReceivers != null) {
       for (ResultReceiver extraReceiver : mExtraReceivers) {
-        internalSend(extraReceiver, resultData, callbackAnnotation);
+        internalSend(extraReceiver, resultData, callbackType);
       }
     }
   }
 
-  private void internalSend(ResultReceiver receiver, Bundle resultData,
-      Class<? extends Annotation> callbackAnnotation) {
+  private void internalSend(ResultReceiver receiver, Bundle resultData, int callbackType) {
     if (receiver != null) {
-      if (resultData == null) resultData = new Bundle();
-      resultData.putLong(Groundy.TASK_ID, getId());
-      resultData.putSerializable(Groundy.KEY_CALLBACK_ANNOTATION, callbackAnnotation);
-      receiver.send(RESULT_CODE_CALLBACK_ANNOTATION, resultData);
+      // each receiver gets its own bundle: they are used from other threads while the task may
+      // keep using or changing its own, just like it could if they were parceled
+      Bundle data = resultData == null ? new Bundle() : new Bundle(resultData);
+      data.putLong(Groundy.TASK_ID, getId());
+      if (receiver instanceof CallbacksReceiver) {
+        // same process: hand the callback directly to the receiver
+        ((CallbacksReceiver) receiver).deliver(callbackType, data);
+      } else {
+        // large byte arrays would hit the binder transaction limit
+        Bundle parceled = PayloadStore.detach(mContext, data, null);
+        parceled.putInt(Groundy.KEY_CALLBACK_TYPE, callbackType);
+        receiver.send(RESULT_CODE_CALLBACK_ANNOTATION, parceled);
+      }
     }
   }
 
@@ -242,8 +294,65 @@ public abstract class GroundyTask {
   protected void callback(String name, Bundle resultData) {
     if (resultData == null) resultData = new Bundle();
     resultData.putString(Groundy.KEY_CALLBACK_NAME, name);
-    resultData.putSerializable(Groundy.TASK_IMPLEMENTATION, getClass());
-    send(OnCallback.class, resultData);
+    send(CallbackTypes.CALLBACK, resultData);
+  }
+
+  /**
+   * Streams a chunk of results to the callback methods annotated with the specified name. At most
+   * {@link #getStreamCapacity()} chunks can be waiting for the consumer; if it lags behind, this
+   * method blocks until it catches up or the task starts quitting. Chunks sent to a {@link
+   * TaskPublisher} wait for the demand of its subscriber.
+   *
+   * @param name the name of the callback to invoke
+   * @param chunk the partial results to send
+   * @return true if the chunk was sent, false if there is nobody listening or the task is quitting
+   */
+  protected boolean emitChunk(String name, Bundle chunk) {
+    return internalEmitChunk(name, chunk, true);
+  }
+
+  /**
+   * Same as {@link #emitChunk(String, android.os.Bundle)} but the chunk is dropped instead of
+   * blocking when the consumer lags behind.
+   *
+   * @param name the name of the callback to invoke
+   * @param chunk the partial results to send
+   * @return true if the chunk was sent, false if it was dropped
+   */
+  protected boolean offerChunk(String name, Bundle chunk) {
+    return internalEmitChunk(name, chunk, false);
+  }
+
+  /**
+   * Override this to change the amount of chunks that can be waiting for the consumer before
+   * {@link #emitChunk(String, android.os.Bundle)} blocks.
+   *
+   * @return maximum amount of undelivered chunks
+   */
+  protected int getStreamCapacity() {
+    return DEFAULT_STREAM_CAPACITY;
+  }
+
+  private boolean internalEmitChunk(String name, Bundle chunk, boolean block) {
+    int consumers = mReceiver != null ? 1 : 0;
+    if (mExtraReceivers != null) {
+      consumers += mExtraReceivers.size();
+    }
+    if (consumers == 0) {
+      return false;
+    }
+
+    if (mStreamChannel == null) {
+      mStreamChannel = new StreamChannel(getStreamCapacity());
+    }
+    if (!mStreamChannel.acquire(this, block)) {
+      return false;
+    }
+
+    if (chunk == null) chunk = new Bundle();
+    chunk.putParcelable(Groundy.KEY_CHUNK_ACK, mStreamChannel.newAck(consumers));
+    callback(name, chunk);
+    return true;
   }
 
   /**
@@ -292,20 +401,82 @@ public abstract class GroundyTask {
    * Prepare and sends a progress update to the current receiver. Callback used is {@link
    * com.telly.groundy.annotations.OnProgress} and it will contain a bundle with an integer extra
    * called {@link Groundy#PROGRESS}
+   * <p/>
+   * Updates without extra data are coalesced: values equal to the last one sent are dropped and
+   * updates arriving sooner than {@link #getProgressInterval()} are held back. The latest value
+   * held back is sent once the interval expires, or before any other callback.
    *
    * @param extraData additional information to send to the progress callback
    * @param progress percentage to send to receiver
    */
   public void updateProgress(int progress, Bundle extraData) {
-    if (mReceiver != null) {
-      Bundle resultData = new Bundle();
-      resultData.putInt(Groundy.PROGRESS, progress);
-      resultData.putSerializable(Groundy.TASK_IMPLEMENTATION, getClass());
-      if (extraData != null) resultData.putAll(extraData);
-      send(OnProgress.class, resultData);
+    mReportedProgress = progress;
+    if (mReceiver == null) {
+      return;
+    }
+
+    synchronized (mProgressLock) {
+      if (extraData == null && mProgressSent) {
+        if (progress == mLastProgress) {
+          mHasPendingProgress = false;
+          return;
+        }
+        long interval = getProgressInterval();
+        long elapsed = SystemClock.uptimeMillis() - mLastProgressTime;
+        if (progress < 100 && elapsed < interval) {
+          mPendingProgress = progress;
+          mHasPendingProgress = true;
+          if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            PROGRESS_FLUSHER.postDelayed(mFlushProgress, interval - elapsed);
+          }
+          return;
+        }
+      }
+      sendProgress(progress, extraData);
     }
   }
 
+  /**
+   * Override this to change how often progress updates can be sent.
+   *
+   * @return minimum time in milliseconds between two progress updates, 0 to disable throttling
+   */
+  protected long getProgressInterval() {
+    return DEFAULT_PROGRESS_INTERVAL;
+  }
+
+  /** Sends the progress update that was held back by throttling, if any. */
+  void flushProgress() {
+    synchronized (mProgressLock) {
+      cancelProgressFlush();
+      if (mHasPendingProgress && mReceiver != null) {
+        sendProgress(mPendingProgress, null);
+      }
+    }
+  }
+
+  private void cancelProgressFlush() {
+    if (mFlushScheduled) {
+      mFlushScheduled = false;
+      PROGRESS_FLUSHER.removeCallbacks(mFlushProgress);
+    }
+  }
+
+  /** Must be called holding mProgressLock, which keeps updates in order. */
+  private void sendProgress(int progress, Bundle extraData) {
+    cancelProgressFlush();
+    mProgressSent = true;
+    mLastProgress = progress;
+    mLastProgressTime = SystemClock.uptimeMillis();
+    mHasPendingProgress = false;
+
+    Bundle resultData = new Bundle();
+    resultData.putInt(Groundy.PROGRESS, progress);
+    if (extraData != null) resultData.putAll(extraData);
+    send(CallbackTypes.PROGRESS, resultData);
+  }
+
   /**
    * @return override and return true if you want to setup a {@link android.os.PowerManager.WakeLock}
    *         on the wireless connection.
@@ -315,11 +486,12 @@ public abstract class GroundyTask {
   }
 
   /**
-   * Override this if you want to cache the GroundyTask instance. Do it only if you are sure that
-   * {@link GroundyTask#doInBackground()} method won't need a fresh instance each time they are
-   * executed.
+   * Override this if you want to reuse GroundyTask instances, e.g. if they are expensive to
+   * create. Finished instances are kept in a bounded pool and handed to later executions of the
+   * same task, one execution at a time. Groundy clears its own state before reusing an instance;
+   * override {@link #onReset()} to clear yours.
    *
-   * @return true if this instance must be cached
+   * @return true if this instance can be reused
    */
   protected boolean canBeCached() {
     return false;
@@ -374,6 +546,12 @@ public abstract class GroundyTask {
         case CANCEL_BY_GROUP:
           toString += ", quittingReason=CANCEL_BY_GROUP";
           break;
+        case CANCEL_BY_FUTURE:
+          toString += ", quittingReason=CANCEL_BY_FUTURE";
+          break;
+        case CANCEL_BY_SUBSCRIPTION:
+          toString += ", quittingReason=CANCEL_BY_SUBSCRIPTION";
+          break;
         default:
           toString += ", quittingReason=" + mQuittingReason;
       }
@@ -386,6 +564,48 @@ public abstract class GroundyTask {
   protected void onCreate() {
   }
 
+  /**
+   * Called once a cached instance finished its execution and before it is reused. Clear here any
+   * state that must not leak into the next execution. See {@link #canBeCached()}.
+   */
+  protected void onReset() {
+  }
+
+  /** Clears the state of the finished execution so that this instance can be reused. */
+  final void reset() {
+    onReset();
+    mContext = null;
+    // results delivered within the process may still reference the previous args
+    mArgs = new Bundle();
+    mStartId = 0;
+    mReceiver = null;
+    mQuittingReason = Integer.MIN_VALUE;
+    mGroupId = 0;
+    mRedelivered = false;
+    mId = 0;
+    mStackTrace = null;
+    mIntent = null;
+    mExtraReceivers = null;
+    mPayloadFiles = null;
+    if (mInjectedArgs != null) {
+      mInjectedArgs.clearFrom(this);
+      mInjectedArgs = null;
+    }
+    mExecuted = false;
+    mStreamChannel = null;
+    mProgressSent = false;
+    mLastProgress = 0;
+    mLastProgressTime = 0;
+    mReportedProgress = -1;
+    mEnqueuedAt = 0;
+    mStartedAt = 0;
+    synchronized (mProgressLock) {
+      cancelProgressFlush();
+      mHasPendingProgress = false;
+      mPendingProgress = 0;
+    }
+  }
+
   void setStackTrace(StackTraceElement[] stackTrace) {
     mStackTrace = stackTrace;
   }
@@ -411,6 +631,20 @@ public abstract class GroundyTask {
     return mIntent;
   }
 
+  /** @param payloadFiles files holding large arguments, deleted once the task finishes */
+  void setPayloadFiles(List<String> payloadFiles) {
+    mPayloadFiles = payloadFiles;
+  }
+
+  List<String> getPayloadFiles() {
+    return mPayloadFiles;
+  }
+
+  /** @return true if some receiver gets the callbacks of this task */
+  boolean hasReceivers() {
+    return mReceiver != null || mExtraReceivers != null;
+  }
+
   void appendReceiver(ResultReceiver resultReceiver) {
     if (mExtraReceivers == null) {
       mExtraReceivers = new ArrayList<ResultReceiver>();
@@ -424,5 +658,25 @@ public abstract class GroundyTask {
 
   void flagAsExecuted() {
     mExecuted = true;
+    mStartedAt = SystemClock.elapsedRealtime();
+  }
+
+  /** @param enqueuedAt {@link SystemClock#elapsedRealtime()} when the service scheduled it */
+  void setEnqueuedAt(long enqueuedAt) {
+    mEnqueuedAt = enqueuedAt;
+  }
+
+  long getEnqueuedAt() {
+    return mEnqueuedAt;
+  }
+
+  /** @return {@link SystemClock#elapsedRealtime()} when it started running, 0 if it did not */
+  long getStartedAt() {
+    return mStartedAt;
+  }
+
+  /** @return the last progress reported, -1 if none */
+  int getReportedProgress() {
+    return mReportedProgress;
   }
 }
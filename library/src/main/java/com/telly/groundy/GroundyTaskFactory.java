@@ -25,14 +25,17 @@ package com.telly.groundy;
 
 import android.content.Context;
 import java.lang.reflect.Constructor;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 final class GroundyTaskFactory {
   private static final String TAG = "GroundyTaskFactory";
 
-  private static final Map<Class<? extends GroundyTask>, GroundyTask> CACHE =
-      new HashMap<Class<? extends GroundyTask>, GroundyTask>();
+  /** Maximum amount of idle instances kept per task class. */
+  static final int MAX_POOLED_PER_CLASS = 4;
+
+  private static final ConcurrentMap<Class<? extends GroundyTask>, TaskPool> POOLS =
+      new ConcurrentHashMap<Class<? extends GroundyTask>, TaskPool>();
 
   private GroundyTaskFactory() {
   }
@@ -45,19 +48,24 @@ final class GroundyTaskFactory {
    * @return An instance of a GroundyTask if a given call is valid null otherwise
    */
   static GroundyTask get(Class<? extends GroundyTask> taskClass, Context context) {
-    if (CACHE.containsKey(taskClass)) {
-      return CACHE.get(taskClass);
+    if (taskClass == null) {
+      // concurrent maps don't accept null keys
+      L.e(TAG, "Unable to create value for a null task class");
+      return null;
+    }
+    TaskPool pool = POOLS.get(taskClass);
+    if (pool != null) {
+      GroundyTask pooledTask = pool.acquire();
+      if (pooledTask != null) {
+        pooledTask.setContext(context);
+        return pooledTask;
+      }
     }
+
     GroundyTask groundyTask = null;
     try {
       L.d(TAG, "Instantiating " + taskClass);
-      Constructor ctc = taskClass.getConstructor();
-      groundyTask = (GroundyTask) ctc.newInstance();
-      if (groundyTask.canBeCached()) {
-        CACHE.put(taskClass, groundyTask);
-      } else if (CACHE.containsKey(taskClass)) {
-        CACHE.remove(taskClass);
-      }
+      groundyTask = newTask(taskClass);
       groundyTask.setContext(context);
       groundyTask.onCreate();
       return groundyTask;
@@ -66,4 +74,70 @@ final class GroundyTaskFactory {
     }
     return groundyTask;
   }
+
+  /**
+   * Makes a finished task available for later executions if it can be cached. The task must not
+   * be used after calling this method.
+   *
+   * @param groundyTask a task that finished its execution; null is ignored
+   */
+  static void release(GroundyTask groundyTask) {
+    if (groundyTask == null || !groundyTask.canBeCached()) {
+      return;
+    }
+
+    groundyTask.reset();
+    Class<? extends GroundyTask> taskClass = groundyTask.getClass();
+    TaskPool pool = POOLS.get(taskClass);
+    if (pool == null) {
+      TaskPool newPool = new TaskPool(MAX_POOLED_PER_CLASS);
+      pool = POOLS.putIfAbsent(taskClass, newPool);
+      if (pool == null) {
+        pool = newPool;
+      }
+    }
+    pool.release(groundyTask);
+  }
+
+  private static GroundyTask newTask(Class<? extends GroundyTask> taskClass) throws Exception {
+    // creators are generated in the package of their tasks
+    TaskCreator taskCreator = GeneratedRegistries.forPackageOf(taskClass,
+        GeneratedRegistries.TASK_CREATOR, TaskCreator.class);
+    if (taskCreator != null) {
+      GroundyTask groundyTask = taskCreator.create(taskClass);
+      if (groundyTask != null) {
+        return groundyTask;
+      }
+    }
+
+    // tasks the annotation processor did not see, e.g. from precompiled libraries
+    Constructor ctc = taskClass.getConstructor();
+    return (GroundyTask) ctc.newInstance();
+  }
+
+  /** Bounded stack of idle instances of a task class. */
+  private static final class TaskPool {
+    private final GroundyTask[] mIdleTasks;
+    private int mSize;
+
+    TaskPool(int capacity) {
+      mIdleTasks = new GroundyTask[capacity];
+    }
+
+    synchronized GroundyTask acquire() {
+      if (mSize == 0) {
+        return null;
+      }
+      GroundyTask groundyTask = mIdleTasks[--mSize];
+      mIdleTasks[mSize] = null;
+      return groundyTask;
+    }
+
+    synchronized void release(GroundyTask groundyTask) {
+      // when full the task is just discarded
+      if (mSize < mIdleTasks.length) {
+        mIdleTasks[mSize++] = groundyTask;
+      }
+    }
+  }
 }
@@ -0,0 +1,260 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.telly.groundy;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Process wide cache of the metadata Groundy derives from classes: result proxies per task and
+ * handler type, and reflected methods per handler type. Lookups don't lock.
+ *
+ * Keys reference their classes weakly and values are softly referenced, since they usually
+ * reference the classes too; so the cache does not pin classes nor their class loaders. Entries go
+ * away once their classes are unloaded or the values are collected. The cache is also bounded
+ * (oldest entries are evicted first) and can be trimmed when the system is low on memory.
+ */
+final class MetadataCache {
+
+  /** Maximum number of entries kept before evicting the oldest ones. */
+  static final int MAX_ENTRIES = 256;
+
+  /** Mirrors ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN, which is not available in older APIs. */
+  static final int TRIM_MEMORY_UI_HIDDEN = 20;
+  /** Mirrors ComponentCallbacks2.TRIM_MEMORY_MODERATE, which is not available in older APIs. */
+  static final int TRIM_MEMORY_MODERATE = 60;
+
+  private static final int KIND_PROXY = 1;
+  private static final int KIND_METHODS = 2;
+
+  private static final ConcurrentMap<Key, Value> ENTRIES = new ConcurrentHashMap<Key, Value>();
+  private static final Queue<Key> INSERTION_ORDER = new ConcurrentLinkedQueue<Key>();
+  /** Receives both the collected classes of the keys and the collected values. */
+  private static final ReferenceQueue<Object> COLLECTED = new ReferenceQueue<Object>();
+
+  /** Non instanceable class. */
+  private MetadataCache() {
+  }
+
+  static ResultProxy getProxy(Class<? extends GroundyTask> taskType, Class<?> handlerType) {
+    return (ResultProxy) get(new Key(KIND_PROXY, taskType, handlerType));
+  }
+
+  /**
+   * Caches a proxy unless there is already one for the same task and handler types.
+   *
+   * @return the proxy that ended up cached, which must be used instead of the provided one
+   */
+  static ResultProxy putProxy(Class<? extends GroundyTask> taskType, Class<?> handlerType,
+      ResultProxy proxy) {
+    return (ResultProxy) put(KIND_PROXY, taskType, handlerType, proxy);
+  }
+
+  /** @return the public methods of the provided type, see {@link Class#getMethods()} */
+  static Method[] getMethods(Class<?> type) {
+    Method[] methods = (Method[]) get(new Key(KIND_METHODS, type, null));
+    if (methods != null) {
+      return methods;
+    }
+    return (Method[]) put(KIND_METHODS, type, null, type.getMethods());
+  }
+
+  /**
+   * Releases cached metadata according to the provided trim level: everything is dropped for
+   * moderate or worse levels, otherwise the cache is shrunk to half its capacity.
+   *
+   * @param level trim level as received by onTrimMemory
+   */
+  static void trim(int level) {
+    if (level >= TRIM_MEMORY_MODERATE) {
+      clear();
+    } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+      evictDownTo(MAX_ENTRIES / 2);
+    }
+  }
+
+  /** Drops all cached metadata. */
+  static void clear() {
+    Key key;
+    while ((key = INSERTION_ORDER.poll()) != null) {
+      ENTRIES.remove(key);
+    }
+    purgeCollected();
+  }
+
+  static int size() {
+    return ENTRIES.size();
+  }
+
+  private static Object get(Key lookupKey) {
+    Value value = ENTRIES.get(lookupKey);
+    return value != null ? value.get() : null;
+  }
+
+  private static Object put(int kind, Class<?> first, Class<?> second, Object value) {
+    purgeCollected();
+    Key key = Key.create(kind, first, second);
+    Value newValue = new Value(value, key);
+    while (true) {
+      Value existing = ENTRIES.putIfAbsent(key, newValue);
+      if (existing == null) {
+        INSERTION_ORDER.offer(key);
+        evictDownTo(MAX_ENTRIES);
+        return value;
+      }
+      Object existingValue = existing.get();
+      if (existingValue != null) {
+        return existingValue;
+      }
+      // collected but not purged yet; the stored key stays in the insertion order
+      if (ENTRIES.replace(key, existing, newValue)) {
+        return value;
+      }
+    }
+  }
+
+  private static void evictDownTo(int maxEntries) {
+    while (ENTRIES.size() > maxEntries) {
+      Key eldest = INSERTION_ORDER.poll();
+      if (eldest == null) {
+        break;
+      }
+      ENTRIES.remove(eldest);
+    }
+  }
+
+  private static void purgeCollected() {
+    Reference<?> collected;
+    while ((collected = COLLECTED.poll()) != null) {
+      boolean removed;
+      Key key;
+      if (collected instanceof Value) {
+        key = ((Value) collected).key;
+        // only if it was not replaced by a live value in the meantime
+        removed = ENTRIES.remove(key, collected);
+      } else {
+        // keys of collected classes are only equal to themselves
+        key = ((ClassReference) collected).owner;
+        removed = key != null && ENTRIES.remove(key) != null;
+      }
+      if (removed) {
+        INSERTION_ORDER.remove(key);
+      }
+    }
+  }
+
+  /** Softly referenced cached value. */
+  private static final class Value extends SoftReference<Object> {
+    final Key key;
+
+    Value(Object value, Key key) {
+      super(value, COLLECTED);
+      this.key = key;
+    }
+  }
+
+  private static final class ClassReference extends WeakReference<Class<?>> {
+    Key owner;
+
+    ClassReference(Class<?> referent) {
+      super(referent, COLLECTED);
+    }
+  }
+
+  /**
+   * Key made of up to two classes. Stored keys reference them weakly; keys used only to query the
+   * cache reference them directly, so lookups don't allocate references. Hash code is fixed at
+   * creation time.
+   */
+  private static final class Key {
+    final int kind;
+    final Object first;
+    final Object second;
+    final int hash;
+
+    /** Creates a transient key used only to query the cache. */
+    Key(int kind, Class<?> first, Class<?> second) {
+      this(kind, first, second, hash(kind, first, second));
+    }
+
+    private Key(int kind, Object first, Object second, int hash) {
+      this.kind = kind;
+      this.first = first;
+      this.second = second;
+      this.hash = hash;
+    }
+
+    /** Creates a key meant to be stored, whose references get enqueued once collected. */
+    static Key create(int kind, Class<?> first, Class<?> second) {
+      ClassReference firstRef = new ClassReference(first);
+      ClassReference secondRef = second == null ? null : new ClassReference(second);
+      Key key = new Key(kind, firstRef, secondRef, hash(kind, first, second));
+      firstRef.owner = key;
+      if (secondRef != null) {
+        secondRef.owner = key;
+      }
+      return key;
+    }
+
+    private static int hash(int kind, Class<?> first, Class<?> second) {
+      int result = kind;
+      result = 31 * result + first.hashCode();
+      result = 31 * result + (second != null ? second.hashCode() : 0);
+      return result;
+    }
+
+    private static Object classOf(Object classOrReference) {
+      return classOrReference instanceof ClassReference
+          ? ((ClassReference) classOrReference).get() : classOrReference;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+
+      Key that = (Key) o;
+      if (kind != that.kind || hash != that.hash) return false;
+
+      // a collected class is never equal to anything but the very same key
+      Object firstClass = classOf(first);
+      if (firstClass == null || firstClass != classOf(that.first)) return false;
+      if (second == null || that.second == null) return second == that.second;
+      Object secondClass = classOf(second);
+      return secondClass != null && secondClass == classOf(that.second);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
@@ -0,0 +1,347 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.telly.groundy;
+
+import android.app.ActivityManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Side channel for byte arrays too large to travel in a parcel. Before a bundle crosses the
+ * binder, every byte array bigger than {@link #MAX_INLINE_SIZE} is replaced by a small reference:
+ * a handle to a table of this process when the other side runs in it, or a file in the cache
+ * directory otherwise. The receiving side puts the values back before using the bundle.
+ */
+final class PayloadStore {
+
+  private static final String TAG = "groundy:payloads";
+  /** Byte arrays bigger than this are not parceled. */
+  static final int MAX_INLINE_SIZE = 128 * 1024;
+  /** Prefix of the keys holding a reference, followed by the key of the value. */
+  static final String REFERENCE_PREFIX = "com.telly.groundy.key.PAYLOAD:";
+  /** Present in the bundles that hold references, so that others are not scanned. */
+  static final String KEY_HAS_REFERENCES = "com.telly.groundy.key.HAS_PAYLOADS";
+  private static final String HANDLE_PREFIX = "handle:";
+  private static final String PAYLOADS_DIR = "groundy-payloads";
+  /**
+   * Payloads older than this are considered abandoned by {@link #sweep(android.content.Context)},
+   * e.g. because the process that had to read them died or the intent was never handled.
+   */
+  static final long MAX_AGE = 24 * 60 * 60 * 1000L;
+
+  private static final Map<Long, Handle> HANDLES = new ConcurrentHashMap<Long, Handle>();
+  private static final AtomicLong HANDLE_SEQUENCE = new AtomicLong();
+  /** Whether each service class runs in this process. */
+  private static final Map<Class<?>, Boolean> LOCAL_SERVICES =
+      new ConcurrentHashMap<Class<?>, Boolean>();
+
+  private PayloadStore() {
+  }
+
+  /**
+   * @param context used to write the files
+   * @param data the bundle about to be parceled; it is not modified
+   * @param serviceClass the service the bundle is sent to, or null if it is read back by another
+   * process
+   * @return a copy of the bundle with its large byte arrays replaced by references, or the same
+   *         bundle if it has none
+   */
+  static Bundle detach(Context context, Bundle data, Class<?> serviceClass) {
+    if (data == null) {
+      return null;
+    }
+
+    Bundle detached = null;
+    for (String key : data.keySet()) {
+      Object value = data.get(key);
+      if (!(value instanceof byte[]) || ((byte[]) value).length <= MAX_INLINE_SIZE) {
+        continue;
+      }
+
+      byte[] payload = (byte[]) value;
+      boolean inProcess = serviceClass != null && runsInThisProcess(context, serviceClass);
+      String reference = inProcess ? putHandle(payload) : writeFile(context, payload);
+      if (reference == null) {
+        // it was not possible to store it, so it is sent inline
+        continue;
+      }
+      if (detached == null) {
+        detached = new Bundle(data);
+        detached.putBoolean(KEY_HAS_REFERENCES, true);
+      }
+      detached.remove(key);
+      detached.putString(REFERENCE_PREFIX + key, reference);
+    }
+    return detached != null ? detached : data;
+  }
+
+  /**
+   * Puts back the values of the references found in the bundle. Handles are released right away.
+   *
+   * @param data a bundle that may hold references
+   * @return the files read, which must be released with {@link #release(java.util.List)} once
+   *         they are no longer needed; null if none
+   */
+  static List<String> attach(Bundle data) {
+    if (data == null || !data.containsKey(KEY_HAS_REFERENCES)) {
+      return null;
+    }
+    data.remove(KEY_HAS_REFERENCES);
+
+    List<String> references = new ArrayList<String>(data.keySet());
+    List<String> files = null;
+    for (String referenceKey : references) {
+      if (!referenceKey.startsWith(REFERENCE_PREFIX)) {
+        continue;
+      }
+
+      String reference = data.getString(referenceKey);
+      data.remove(referenceKey);
+      byte[] value;
+      if (reference.startsWith(HANDLE_PREFIX)) {
+        value = takeHandle(reference);
+      } else {
+        value = readFile(reference);
+        if (files == null) {
+          files = new ArrayList<String>();
+        }
+        files.add(reference);
+      }
+
+      if (value != null) {
+        data.putByteArray(referenceKey.substring(REFERENCE_PREFIX.length()), value);
+      } else {
+        L.e(TAG, "Payload " + reference + " is no longer available");
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Releases the references found in the bundle without reading them, e.g. when the bundle will
+   * never be used. The bundle is not modified.
+   *
+   * @param data a bundle that may hold references; can be null
+   */
+  static void discard(Bundle data) {
+    if (data == null || !data.containsKey(KEY_HAS_REFERENCES)) {
+      return;
+    }
+    for (String key : data.keySet()) {
+      if (!key.startsWith(REFERENCE_PREFIX)) {
+        continue;
+      }
+      String reference = data.getString(key);
+      if (reference.startsWith(HANDLE_PREFIX)) {
+        takeHandle(reference);
+      } else if (!new File(reference).delete()) {
+        L.d(TAG, "Could not delete payload " + reference);
+      }
+    }
+  }
+
+  /** @param files files returned by {@link #attach(android.os.Bundle)}; can be null */
+  static void release(List<String> files) {
+    if (files == null) {
+      return;
+    }
+    for (String file : files) {
+      if (!new File(file).delete()) {
+        L.d(TAG, "Could not delete payload " + file);
+      }
+    }
+  }
+
+  /**
+   * Deletes the files and handles older than {@link #MAX_AGE}. It does disk I/O, so it must not be
+   * called from the main thread.
+   *
+   * @param context used to find the files
+   */
+  static void sweep(Context context) {
+    long oldestHandle = SystemClock.elapsedRealtime() - MAX_AGE;
+    for (Iterator<Handle> it = HANDLES.values().iterator(); it.hasNext(); ) {
+      if (it.next().mStoredAt < oldestHandle) {
+        it.remove();
+      }
+    }
+
+    File[] files = new File(context.getCacheDir(), PAYLOADS_DIR).listFiles();
+    if (files == null) {
+      return;
+    }
+    long oldestFile = System.currentTimeMillis() - MAX_AGE;
+    for (File file : files) {
+      if (file.lastModified() < oldestFile && !file.delete()) {
+        L.d(TAG, "Could not delete stale payload " + file);
+      }
+    }
+  }
+
+  /**
+   * @param context any context of the application
+   * @param serviceClass the service to check
+   * @return true if the service is declared to run in the same process as the caller
+   */
+  static boolean runsInThisProcess(Context context, Class<?> serviceClass) {
+    Boolean local = LOCAL_SERVICES.get(serviceClass);
+    if (local == null) {
+      local = serviceProcessName(context, serviceClass).equals(currentProcessName(context));
+      LOCAL_SERVICES.put(serviceClass, local);
+    }
+    return local;
+  }
+
+  private static String serviceProcessName(Context context, Class<?> serviceClass) {
+    try {
+      PackageManager pm = context.getPackageManager();
+      ServiceInfo info = pm.getServiceInfo(new ComponentName(context, serviceClass), 0);
+      return String.valueOf(info.processName);
+    } catch (PackageManager.NameNotFoundException e) {
+      L.e(TAG, "Could not find the process of " + serviceClass, e);
+      return "";
+    }
+  }
+
+  private static String currentProcessName(Context context) {
+    ActivityManager activityManager =
+        (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+    List<ActivityManager.RunningAppProcessInfo> processes =
+        activityManager.getRunningAppProcesses();
+    if (processes != null) {
+      int pid = Process.myPid();
+      for (ActivityManager.RunningAppProcessInfo process : processes) {
+        if (process.pid == pid) {
+          return process.processName;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static String putHandle(byte[] value) {
+    long id = HANDLE_SEQUENCE.incrementAndGet();
+    HANDLES.put(id, new Handle(value));
+    return HANDLE_PREFIX + Process.myPid() + ":" + id;
+  }
+
+  private static byte[] takeHandle(String reference) {
+    int separator = reference.lastIndexOf(':');
+    int pid = Integer.parseInt(reference.substring(HANDLE_PREFIX.length(), separator));
+    if (pid != Process.myPid()) {
+      // the process that stored it died, e.g. when an intent is redelivered
+      return null;
+    }
+    Handle handle = HANDLES.remove(Long.parseLong(reference.substring(separator + 1)));
+    return handle != null ? handle.mValue : null;
+  }
+
+  private static String writeFile(Context context, byte[] value) {
+    if (context == null) {
+      return null;
+    }
+
+    File dir = new File(context.getCacheDir(), PAYLOADS_DIR);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      L.e(TAG, "Could not create " + dir);
+      return null;
+    }
+
+    File file = null;
+    FileOutputStream out = null;
+    try {
+      file = File.createTempFile("payload", null, dir);
+      out = new FileOutputStream(file);
+      out.write(value);
+      return file.getAbsolutePath();
+    } catch (IOException e) {
+      L.e(TAG, "Could not write payload", e);
+      if (file != null) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+      return null;
+    } finally {
+      closeQuietly(out);
+    }
+  }
+
+  private static byte[] readFile(String path) {
+    File file = new File(path);
+    FileInputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      byte[] value = new byte[(int) file.length()];
+      int offset = 0;
+      while (offset < value.length) {
+        int read = in.read(value, offset, value.length - offset);
+        if (read == -1) {
+          throw new IOException("Unexpected end of " + path);
+        }
+        offset += read;
+      }
+      return value;
+    } catch (IOException e) {
+      L.e(TAG, "Could not read payload", e);
+      return null;
+    } finally {
+      closeQuietly(in);
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  private static final class Handle {
+    final byte[] mValue;
+    final long mStoredAt = SystemClock.elapsedRealtime();
+
+    Handle(byte[] value) {
+      mValue = value;
+    }
+  }
+}
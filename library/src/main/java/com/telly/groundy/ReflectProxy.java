@@ -36,9 +36,11 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 class ReflectProxy implements ResultProxy {
 
@@ -46,7 +48,6 @@ class ReflectProxy implements ResultProxy {
       OnStart.class, OnSuccess.class, OnFailure.class, OnCancel.class, OnProgress.class,
       OnCallback.class
   };
-  private static final Map<Class<?>, Method[]> METHODS_CACHE = new HashMap<Class<?>, Method[]>();
 
   private final Map<Class<? extends Annotation>, List<MethodSpec>> callbacksMap;
   private final Class<? extends GroundyTask> mTaskType;
@@ -60,26 +61,21 @@ class ReflectProxy implements ResultProxy {
     fillMethodSpecMap();
   }
 
-  @Override public void apply(Object target, Class<? extends Annotation> callbackAnnotation,
-      Bundle resultData) {
-    List<MethodSpec> methodSpecs = callbacksMap.get(callbackAnnotation);
+  @Override public void apply(Object target, int callbackType, Bundle resultData) {
+    List<MethodSpec> methodSpecs = callbacksMap.get(CallbackTypes.annotationOf(callbackType));
     if (methodSpecs == null || methodSpecs.isEmpty()) {
       return;
     }
 
     String callbackName = resultData.getString(Groundy.KEY_CALLBACK_NAME);
 
-    for (MethodSpec methodSpec : methodSpecs) {
+    for (int i = 0; i < methodSpecs.size(); i++) {
+      MethodSpec methodSpec = methodSpecs.get(i);
       if (callbackName != null && !callbackName.equals(methodSpec.name)) {
         // ignore method specs whose callback is not the same that is being applied right now
         continue;
       }
-      Object[] values = getResultParams(resultData, methodSpec);
-      try {
-        methodSpec.method.invoke(target, values);
-      } catch (Exception pokemon) {
-        pokemon.printStackTrace();
-      }
+      methodSpec.invoke(target, resultData);
     }
   }
 
@@ -96,7 +92,7 @@ class ReflectProxy implements ResultProxy {
   }
 
   private void fillMethodSpecMapWith(Class<?> type) {
-    for (Method method : getMethods(type)) {
+    for (Method method : MetadataCache.getMethods(type)) {
       // register groundy callbacks
       for (Class<?> groundyCallback : GROUNDY_CALLBACKS) {
         //noinspection unchecked
@@ -106,13 +102,6 @@ class ReflectProxy implements ResultProxy {
     }
   }
 
-  private static Method[] getMethods(Class<?> type) {
-    if (!METHODS_CACHE.containsKey(type)) {
-      METHODS_CACHE.put(type, type.getMethods());
-    }
-    return METHODS_CACHE.get(type);
-  }
-
   private void appendMethodCallback(Class<? extends GroundyTask> taskType,
       Class<? extends Annotation> phaseAnnotation, Method method) {
     Annotation methodAnnotation = method.getAnnotation(phaseAnnotation);
@@ -200,81 +189,6 @@ class ReflectProxy implements ResultProxy {
     return false;
   }
 
-  private static Object[] getResultParams(Bundle resultData, MethodSpec methodSpec) {
-    Method method = methodSpec.method;
-
-    Object[] values = new Object[methodSpec.paramNames.size()];
-    Class<?>[] parameterTypes = method.getParameterTypes();
-
-    List<String> paramNames = methodSpec.paramNames;
-    for (int i = 0; i < paramNames.size(); i++) {
-      Class<?> parameterType = parameterTypes[i];
-      String paramName = paramNames.get(i);
-      values[i] = resultData.get(paramName);
-      if (values[i] == null) {
-        values[i] = defaultValue(parameterType);
-      } else {
-        if (!isTypeValid(parameterType, values[i].getClass())) {
-          throw new RuntimeException(paramName
-              + " parameter is "
-              + values[i].getClass().getSimpleName()
-              + " but the method ("
-              + method
-              + ") expects "
-              + parameterType.getSimpleName());
-        }
-      }
-    }
-    return values;
-  }
-
-  private static boolean isTypeValid(Class<?> expected, Class<?> actual) {
-    if (expected == Double.class || expected == double.class) {
-      return isAnyOf(actual, long.class, Long.class, int.class, Integer.class, double.class,
-          Double.class, float.class, Float.class);
-    } else if (expected == Float.class || expected == float.class) {
-      return isAnyOf(actual, int.class, Integer.class, float.class, Float.class);
-    } else if (expected == Long.class || expected == long.class) {
-      return isAnyOf(actual, int.class, Integer.class, Long.class, long.class);
-    } else if (expected == Integer.class || expected == int.class) {
-      return isAnyOf(actual, int.class, Integer.class);
-    } else if (expected == Boolean.class || expected == boolean.class) {
-      return isAnyOf(actual, boolean.class, Boolean.class);
-    }
-    return expected.isAssignableFrom(actual);
-  }
-
-  private static boolean isAnyOf(Class<?> foo, Class<?>... bars) {
-    for (Class<?> bar : bars) {
-      if (foo == bar) {
-        return true;
-      }
-    }
-    return false;
-  }
-
-  private static Object defaultValue(Class<?> parameterType) {
-    if (parameterType == int.class
-        || parameterType == Integer.class
-        || parameterType == float.class
-        || parameterType == Float.class
-        || parameterType == double.class
-        || parameterType == Double.class
-        || parameterType == long.class
-        || parameterType == Long.class
-        || parameterType == byte.class
-        || parameterType == Byte.class
-        || parameterType == char.class
-        || parameterType == Character.class
-        || parameterType == short.class
-        || parameterType == Short.class) {
-      return 0;
-    } else if (parameterType == boolean.class || parameterType == Boolean.class) {
-      return false;
-    }
-    return null;
-  }
-
   @Override public String toString() {
     return "ReflectProxy{" +
         "groundyTaskType=" + mTaskType +
@@ -283,14 +197,169 @@ class ReflectProxy implements ResultProxy {
   }
 
   static class MethodSpec {
+    private static final Object[] NO_ARGS = new Object[0];
+
     final Method method;
     final List<String> paramNames;
     final String name;
+    private final ParamBinder[] binders;
+    /** Arguments array ready to be reused, or null while it is in use. */
+    private final AtomicReference<Object[]> spareArgs;
 
     MethodSpec(Method m, List<String> methodParams, String customName) {
       method = m;
       paramNames = methodParams;
       name = customName;
+
+      Class<?>[] parameterTypes = m.getParameterTypes();
+      binders = new ParamBinder[parameterTypes.length];
+      for (int i = 0; i < binders.length; i++) {
+        binders[i] = new ParamBinder(methodParams.get(i), parameterTypes[i]);
+      }
+      spareArgs = new AtomicReference<Object[]>(binders.length == 0 ? NO_ARGS
+          : new Object[binders.length]);
+    }
+
+    void invoke(Object target, Bundle resultData) {
+      // the same proxy may be used concurrently or reentrantly, so the array is only reused
+      // when nobody else is holding it
+      Object[] args = spareArgs.getAndSet(null);
+      if (args == null) {
+        args = new Object[binders.length];
+      }
+      try {
+        for (int i = 0; i < binders.length; i++) {
+          args[i] = binders[i].bind(resultData, method);
+        }
+        try {
+          method.invoke(target, args);
+        } catch (Exception pokemon) {
+          pokemon.printStackTrace();
+        }
+      } finally {
+        Arrays.fill(args, null);
+        spareArgs.set(args);
+      }
+    }
+  }
+
+  /** Reads a parameter from the result bundle, with its conversion resolved beforehand. */
+  static final class ParamBinder {
+    private static final int KIND_OTHER = 0;
+    private static final int KIND_INT = 1;
+    private static final int KIND_LONG = 2;
+    private static final int KIND_FLOAT = 3;
+    private static final int KIND_DOUBLE = 4;
+
+    final String name;
+    private final Class<?> type;
+    private final Class<?> boxedType;
+    private final int kind;
+    private final Object defaultValue;
+
+    ParamBinder(String paramName, Class<?> parameterType) {
+      name = paramName;
+      type = parameterType;
+      boxedType = boxed(parameterType);
+      kind = kindOf(boxedType);
+      defaultValue = defaultValue(parameterType);
+    }
+
+    Object bind(Bundle resultData, Method method) {
+      Object value = resultData.get(name);
+      if (value == null) {
+        return defaultValue;
+      }
+      // handlers seen through reflection were not verified at compile time, so always checked
+      if (boxedType.isInstance(value)) {
+        return value;
+      }
+
+      switch (kind) {
+        case KIND_LONG:
+          if (value instanceof Integer) {
+            return ((Integer) value).longValue();
+          }
+          break;
+        case KIND_FLOAT:
+          if (value instanceof Integer) {
+            return ((Integer) value).floatValue();
+          }
+          break;
+        case KIND_DOUBLE:
+          if (value instanceof Integer || value instanceof Long || value instanceof Float) {
+            return ((Number) value).doubleValue();
+          }
+          break;
+        default:
+          break;
+      }
+
+      throw new RuntimeException(name
+          + " parameter is "
+          + value.getClass().getSimpleName()
+          + " but the method ("
+          + method
+          + ") expects "
+          + type.getSimpleName());
+    }
+
+    private static int kindOf(Class<?> boxedType) {
+      if (boxedType == Integer.class) {
+        return KIND_INT;
+      } else if (boxedType == Long.class) {
+        return KIND_LONG;
+      } else if (boxedType == Float.class) {
+        return KIND_FLOAT;
+      } else if (boxedType == Double.class) {
+        return KIND_DOUBLE;
+      }
+      return KIND_OTHER;
+    }
+
+    private static Class<?> boxed(Class<?> parameterType) {
+      if (!parameterType.isPrimitive()) {
+        return parameterType;
+      } else if (parameterType == int.class) {
+        return Integer.class;
+      } else if (parameterType == long.class) {
+        return Long.class;
+      } else if (parameterType == float.class) {
+        return Float.class;
+      } else if (parameterType == double.class) {
+        return Double.class;
+      } else if (parameterType == boolean.class) {
+        return Boolean.class;
+      } else if (parameterType == byte.class) {
+        return Byte.class;
+      } else if (parameterType == char.class) {
+        return Character.class;
+      } else if (parameterType == short.class) {
+        return Short.class;
+      }
+      return parameterType;
+    }
+
+    private static Object defaultValue(Class<?> parameterType) {
+      Class<?> boxedType = boxed(parameterType);
+      if (boxedType == Integer.class) {
+        return 0;
+      } else if (boxedType == Long.class) {
+        return 0L;
+      } else if (boxedType == Float.class) {
+        return 0f;
+      } else if (boxedType == Double.class) {
+        return 0d;
+      } else if (boxedType == Byte.class) {
+        return (byte) 0;
+      } else if (boxedType == Character.class) {
+        return (char) 0;
+      } else if (boxedType == Short.class) {
+        return (short) 0;
+      } else if (boxedType == Boolean.class) {
+        return false;
+      }
+      return null;
     }
   }
-}
\ No newline at end of file
+}
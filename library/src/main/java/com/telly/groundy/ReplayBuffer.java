@@ -0,0 +1,250 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.telly.groundy;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the last progress and the terminal callback of recent tasks that nobody received, so
+ * that handlers attached after they were sent, e.g. by an activity recreated in between, still
+ * receive them. Callbacks are only recorded by the side that missed them: a receiver without
+ * handlers, or the service for tasks without receivers. They are kept for at most {@link #TTL},
+ * for the last {@link #MAX_TASKS} tasks and up to {@link #MAX_BYTES}.
+ */
+final class ReplayBuffer {
+
+  private static final String TAG = "groundy:replay";
+  /** Time in milliseconds callbacks are kept. */
+  static final long TTL = 60 * 1000;
+  static final int MAX_TASKS = 32;
+  /** Maximum parceled size of all the kept callbacks; the oldest tasks are evicted first. */
+  static final int MAX_BYTES = 512 * 1024;
+  /** Callbacks whose data is bigger than this when parceled are not kept. */
+  static final int MAX_EVENT_BYTES = 128 * 1024;
+  /** Mirrors ComponentCallbacks2.TRIM_MEMORY_COMPLETE, which is not available in older APIs. */
+  static final int TRIM_MEMORY_COMPLETE = 80;
+
+  /** Guarded by the class; in insertion order so that the oldest tasks are evicted first. */
+  private static final Map<Long, TaskEvents> TASKS = new LinkedHashMap<Long, TaskEvents>();
+  /** Guarded by the class. */
+  private static int sBytes;
+
+  private ReplayBuffer() {
+  }
+
+  /**
+   * Keeps a callback nobody received. Replaces the previous one of the same kind, if any.
+   *
+   * @param taskId id of the task that sent the callback
+   * @param taskType type of the task that sent the callback
+   * @param callbackType one of the {@link CallbackTypes} ids; only progress and terminal
+   * callbacks are kept
+   * @param resultData the callback data
+   */
+  static void recordMissed(long taskId, Class<? extends GroundyTask> taskType, int callbackType,
+      Bundle resultData) {
+    if (taskId == 0
+        || (callbackType != CallbackTypes.PROGRESS && !CallbackTypes.isTerminal(callbackType))) {
+      return;
+    }
+    // measured out of the lock, parceling the data is the expensive part
+    int bytes = sizeOf(resultData);
+    if (bytes > MAX_EVENT_BYTES) {
+      L.d(TAG, "Not keeping callback " + callbackType + " of task " + taskId + ", it has "
+          + bytes + " bytes");
+      return;
+    }
+    // handlers attached later may modify the data they receive
+    Event event = new Event(callbackType, new Bundle(resultData), bytes);
+
+    synchronized (ReplayBuffer.class) {
+      purgeExpired();
+      TaskEvents taskEvents = TASKS.get(taskId);
+      if (taskEvents == null) {
+        taskEvents = new TaskEvents(taskType);
+        TASKS.put(taskId, taskEvents);
+      }
+      taskEvents.updated = SystemClock.elapsedRealtime();
+
+      if (callbackType == CallbackTypes.PROGRESS) {
+        sBytes -= bytesOf(taskEvents.progress);
+        taskEvents.progress = event;
+      } else {
+        sBytes -= bytesOf(taskEvents.terminal);
+        taskEvents.terminal = event;
+      }
+      sBytes += bytes;
+      evictOldest();
+    }
+  }
+
+  /**
+   * Drops the terminal callback kept for a task, if any, once some handler received it.
+   *
+   * @param taskId id of the task that sent the callback
+   */
+  static synchronized void markDelivered(long taskId) {
+    TaskEvents taskEvents = TASKS.get(taskId);
+    if (taskEvents != null) {
+      sBytes -= bytesOf(taskEvents.progress) + bytesOf(taskEvents.terminal);
+      TASKS.remove(taskId);
+    }
+  }
+
+  /**
+   * @param taskId id of a task
+   * @return the callbacks of the task no handler received yet, in the order they were sent; they
+   *         are considered received from now on
+   */
+  static synchronized List<Event> takeMissed(long taskId) {
+    purgeExpired();
+    TaskEvents taskEvents = TASKS.get(taskId);
+    if (taskEvents == null) {
+      return Collections.emptyList();
+    }
+
+    List<Event> missed = new ArrayList<Event>(2);
+    // progress sent after the terminal callback is not worth replaying
+    if (taskEvents.progress != null && taskEvents.terminal == null) {
+      missed.add(taskEvents.progress);
+    }
+    if (taskEvents.terminal != null) {
+      missed.add(taskEvents.terminal);
+    }
+    sBytes -= bytesOf(taskEvents.progress) + bytesOf(taskEvents.terminal);
+    TASKS.remove(taskId);
+    return missed;
+  }
+
+  /**
+   * @param taskType type of the tasks
+   * @return ids of the finished tasks of that type whose terminal callback no handler received
+   */
+  static synchronized List<Long> finishedTasks(Class<? extends GroundyTask> taskType) {
+    purgeExpired();
+    List<Long> taskIds = new ArrayList<Long>();
+    for (Map.Entry<Long, TaskEvents> entry : TASKS.entrySet()) {
+      TaskEvents taskEvents = entry.getValue();
+      if (taskEvents.taskType == taskType && taskEvents.terminal != null) {
+        taskIds.add(entry.getKey());
+      }
+    }
+    return taskIds;
+  }
+
+  /**
+   * @param taskId id of a task
+   * @return the type of the task if it finished recently and no handler received its terminal
+   *         callback, null otherwise
+   */
+  static synchronized Class<? extends GroundyTask> finishedTaskType(long taskId) {
+    purgeExpired();
+    TaskEvents taskEvents = TASKS.get(taskId);
+    if (taskEvents == null || taskEvents.terminal == null) {
+      return null;
+    }
+    return taskEvents.taskType;
+  }
+
+  /** @param level trim level as received by onTrimMemory */
+  static synchronized void trim(int level) {
+    if (level >= TRIM_MEMORY_COMPLETE) {
+      TASKS.clear();
+      sBytes = 0;
+    } else if (level >= MetadataCache.TRIM_MEMORY_UI_HIDDEN) {
+      purgeExpired();
+    }
+  }
+
+  private static void purgeExpired() {
+    long oldest = SystemClock.elapsedRealtime() - TTL;
+    Iterator<TaskEvents> iterator = TASKS.values().iterator();
+    while (iterator.hasNext()) {
+      TaskEvents taskEvents = iterator.next();
+      if (taskEvents.updated < oldest) {
+        sBytes -= bytesOf(taskEvents.progress) + bytesOf(taskEvents.terminal);
+        iterator.remove();
+      }
+    }
+  }
+
+  private static void evictOldest() {
+    Iterator<TaskEvents> iterator = TASKS.values().iterator();
+    while (iterator.hasNext() && (TASKS.size() > MAX_TASKS || sBytes > MAX_BYTES)) {
+      TaskEvents taskEvents = iterator.next();
+      sBytes -= bytesOf(taskEvents.progress) + bytesOf(taskEvents.terminal);
+      iterator.remove();
+    }
+  }
+
+  private static int bytesOf(Event event) {
+    return event != null ? event.bytes : 0;
+  }
+
+  /** @return the parceled size of the data, or more than {@link #MAX_EVENT_BYTES} if unknown */
+  private static int sizeOf(Bundle resultData) {
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.writeBundle(resultData);
+      return parcel.dataSize();
+    } catch (RuntimeException e) {
+      L.e(TAG, "Could not measure callback data", e);
+      return Integer.MAX_VALUE;
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  static final class Event {
+    final int callbackType;
+    final Bundle resultData;
+    final int bytes;
+
+    Event(int callbackType, Bundle resultData, int bytes) {
+      this.callbackType = callbackType;
+      this.resultData = resultData;
+      this.bytes = bytes;
+    }
+  }
+
+  private static final class TaskEvents {
+    final Class<? extends GroundyTask> taskType;
+    long updated;
+    Event progress;
+    Event terminal;
+
+    TaskEvents(Class<? extends GroundyTask> taskType) {
+      this.taskType = taskType;
+    }
+  }
+}
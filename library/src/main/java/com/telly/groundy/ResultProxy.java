@@ -24,8 +24,12 @@
 package com.telly.groundy;
 
 import android.os.Bundle;
-import java.lang.annotation.Annotation;
 
 public interface ResultProxy {
-  void apply(Object target, Class<? extends Annotation> callbackAnnotation, Bundle resultData);
+  /**
+   * @param target callbacks handler
+   * @param callbackType one of the {@link CallbackTypes} ids
+   * @param resultData data sent by the task
+   */
+  void apply(Object target, int callbackType, Bundle resultData);
 }
@@ -0,0 +1,94 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.telly.groundy;
+
+import android.os.Bundle;
+import android.os.ResultReceiver;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded channel used by {@link GroundyTask} to stream chunks of results. Every chunk takes a
+ * credit which is given back once all its consumers acknowledged it.
+ */
+final class StreamChannel {
+  /** How often a blocked producer checks whether its task is quitting. */
+  private static final long QUIT_CHECK_INTERVAL_MS = 100;
+
+  private final Semaphore mCredits;
+
+  StreamChannel(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Stream capacity must be greater than zero");
+    }
+    mCredits = new Semaphore(capacity);
+  }
+
+  /**
+   * @param task the task producing chunks
+   * @param block true to wait for the consumer, false to give up right away
+   * @return true if a credit was taken and the chunk can be sent
+   */
+  boolean acquire(GroundyTask task, boolean block) {
+    if (!block) {
+      return mCredits.tryAcquire();
+    }
+    try {
+      while (!task.isQuitting()) {
+        if (mCredits.tryAcquire(QUIT_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+          return true;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+
+  /**
+   * @param consumers amount of receivers the chunk will be sent to
+   * @return a receiver that gives the credit back after all consumers acknowledged the chunk
+   */
+  ResultReceiver newAck(int consumers) {
+    return new ChunkAck(consumers);
+  }
+
+  private final class ChunkAck extends ResultReceiver {
+    private final AtomicInteger mPending;
+
+    ChunkAck(int consumers) {
+      // no handler: acknowledgements are processed right away on the sender thread
+      super(null);
+      mPending = new AtomicInteger(consumers);
+    }
+
+    @Override protected void onReceiveResult(int resultCode, Bundle resultData) {
+      if (mPending.decrementAndGet() == 0) {
+        mCredits.release();
+      }
+    }
+  }
+}
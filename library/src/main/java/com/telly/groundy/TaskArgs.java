@@ -0,0 +1,48 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.telly.groundy;
+
+import android.os.Parcelable;
+
+/**
+ * Typed arguments of a task. The annotation processor implements it for every task with
+ * {@link com.telly.groundy.annotations.Arg} fields, writing the values in a compact parcel
+ * encoding and assigning them with direct field access instead of Bundle lookups.
+ */
+public interface TaskArgs extends Parcelable {
+  /**
+   * Assigns the arguments to the fields of the task.
+   *
+   * @param task the task to run; it must be of the type these arguments were generated for
+   */
+  void injectInto(GroundyTask task);
+
+  /**
+   * Sets the fields assigned by {@link #injectInto(GroundyTask)} back to their default values
+   * (zero, false or null), so that a cached instance of the task does not keep them.
+   *
+   * @param task the task these arguments were injected into
+   */
+  void clearFrom(GroundyTask task);
+}
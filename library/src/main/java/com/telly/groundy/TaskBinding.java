@@ -0,0 +1,74 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.telly.groundy;
+
+import android.content.Context;
+
+/**
+ * The task a {@link TaskFuture} or {@link TaskPublisher} belongs to, known once it is sent to the
+ * service. Used to cancel it.
+ */
+final class TaskBinding {
+
+  private Context mContext;
+  private long mTaskId;
+  private Class<? extends GroundyService> mServiceClass;
+
+  /**
+   * @param context used to cancel the task
+   * @param taskId id of the task
+   * @param serviceClass the service running the task
+   */
+  synchronized void bind(Context context, long taskId,
+      Class<? extends GroundyService> serviceClass) {
+    mContext = context.getApplicationContext();
+    mTaskId = taskId;
+    mServiceClass = serviceClass;
+  }
+
+  /** @return the id of the task, or 0 if it was not sent yet */
+  synchronized long getTaskId() {
+    return mTaskId;
+  }
+
+  /**
+   * Asks the service to cancel the task. Does nothing if it was not sent yet.
+   *
+   * @param reason the reason to cancel it
+   */
+  void cancelTask(int reason) {
+    Context context;
+    long taskId;
+    Class<? extends GroundyService> serviceClass;
+    synchronized (this) {
+      context = mContext;
+      taskId = mTaskId;
+      serviceClass = mServiceClass;
+    }
+    if (context != null) {
+      GroundyManager.cancelTaskById(context, taskId, reason, null, serviceClass);
+    }
+  }
+}
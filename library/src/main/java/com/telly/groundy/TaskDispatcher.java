@@ -0,0 +1,47 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.telly.groundy;
+
+import android.os.Bundle;
+
+/**
+ * Routes the results of a task to all its handlers at once. Generated at compile time when the
+ * GROUNDY_DISPATCHERS environment variable is set to true.
+ */
+public interface TaskDispatcher {
+  /**
+   * @param handlerType exact type of a callbacks handler
+   * @return index identifying the handler type, or -1 if this dispatcher does not know it
+   */
+  int indexOf(Class<?> handlerType);
+
+  /**
+   * @param handlers callbacks handlers
+   * @param handlerIndexes index of the type of each handler, as returned by {@link #indexOf}
+   * @param callbackType one of the {@link CallbackTypes} ids
+   * @param resultData data sent by the task
+   */
+  void dispatch(Object[] handlers, int[] handlerIndexes, int callbackType, Bundle resultData);
+}
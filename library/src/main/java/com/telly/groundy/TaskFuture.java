@@ -0,0 +1,380 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.telly.groundy;
+
+import android.content.Context;
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Result of a task that can be waited on or composed from any thread. Obtain it with {@link
+ * Groundy#future()} before queueing or executing the task; it is completed as soon as the result
+ * arrives, without going through the UI looper, even if the task also has callbacks.
+ * <p/>
+ * The result is the data of the {@link com.telly.groundy.annotations.OnSuccess} callback. If the
+ * task fails, {@link #get()} throws an {@link ExecutionException} caused by a {@link
+ * TaskFailedException}; if it is cancelled, a {@link CancellationException}.
+ */
+public class TaskFuture implements Future<Bundle> {
+
+  /** Key of the list of results in the result of {@link #allOf(TaskFuture...)}. */
+  public static final String RESULTS = "com.telly.groundy.key.RESULTS";
+
+  private static final int PENDING = 0;
+  private static final int SUCCEEDED = 1;
+  private static final int FAILED = 2;
+  private static final int CANCELLED = 3;
+
+  /** Runs the continuations in the thread that completes the future. */
+  private static final Executor DIRECT = new Executor() {
+    @Override public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  private final CountDownLatch mDone = new CountDownLatch(1);
+  private volatile int mState = PENDING;
+  private volatile Bundle mResultData;
+  private volatile Throwable mFailure;
+  /** Guarded by this; null once completed. */
+  private List<Runnable> mListeners = new ArrayList<Runnable>();
+
+  private final TaskBinding mBinding = new TaskBinding();
+
+  TaskFuture() {
+  }
+
+  /** Receives the callbacks of the task this future belongs to. */
+  final CallbacksReceiver.EventSink sink() {
+    return new CallbacksReceiver.EventSink() {
+      @Override public void onCallback(int callbackType, Bundle resultData) {
+        switch (callbackType) {
+          case CallbackTypes.SUCCESS:
+            complete(SUCCEEDED, resultData, null);
+            break;
+          case CallbackTypes.FAILURE:
+            complete(FAILED, resultData, new TaskFailedException(resultData));
+            break;
+          case CallbackTypes.CANCEL:
+            complete(CANCELLED, resultData, null);
+            break;
+        }
+      }
+
+      @Override public boolean holdsChunks() {
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @param context used to cancel the task
+   * @param taskId id of the task
+   * @param serviceClass the service running the task
+   */
+  void bind(Context context, long taskId, Class<? extends GroundyService> serviceClass) {
+    mBinding.bind(context, taskId, serviceClass);
+    if (mState == CANCELLED) {
+      // cancelled before it was sent
+      mBinding.cancelTask(GroundyTask.CANCEL_BY_FUTURE);
+    }
+  }
+
+  /**
+   * Cancels the task. The future is cancelled right away, the task stops as soon as the service
+   * processes the cancellation.
+   *
+   * @param mayInterruptIfRunning ignored, running tasks are always asked to stop
+   * @return false if the future was already completed
+   */
+  @Override public boolean cancel(boolean mayInterruptIfRunning) {
+    if (!complete(CANCELLED, null, null)) {
+      return false;
+    }
+    mBinding.cancelTask(GroundyTask.CANCEL_BY_FUTURE);
+    return true;
+  }
+
+  @Override public boolean isCancelled() {
+    return mState == CANCELLED;
+  }
+
+  @Override public boolean isDone() {
+    return mState != PENDING;
+  }
+
+  @Override public Bundle get() throws InterruptedException, ExecutionException {
+    mDone.await();
+    return getResult();
+  }
+
+  @Override public Bundle get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    if (!mDone.await(timeout, unit)) {
+      throw new TimeoutException("Task not completed after " + timeout + " " + unit);
+    }
+    return getResult();
+  }
+
+  private Bundle getResult() throws ExecutionException {
+    switch (mState) {
+      case SUCCEEDED:
+        return mResultData;
+      case FAILED:
+        throw new ExecutionException(mFailure);
+      default:
+        throw new CancellationException();
+    }
+  }
+
+  /**
+   * @param continuation invoked with the result once this future succeeds, in the thread that
+   * completes it
+   * @return a future completed with the result of the continuation
+   */
+  public TaskFuture then(Continuation continuation) {
+    return then(DIRECT, continuation);
+  }
+
+  /**
+   * @param executor runs the continuation
+   * @param continuation invoked with the result once this future succeeds
+   * @return a future completed with the result of the continuation, or with the failure or
+   *         cancellation of this future
+   */
+  public TaskFuture then(final Executor executor, final Continuation continuation) {
+    final TaskFuture next = new TaskFuture();
+    addListener(new Runnable() {
+      @Override public void run() {
+        if (mState != SUCCEEDED) {
+          next.completeFrom(TaskFuture.this);
+          return;
+        }
+        next.execute(executor, new Runnable() {
+          @Override public void run() {
+            try {
+              next.complete(SUCCEEDED, continuation.then(mResultData), null);
+            } catch (Exception e) {
+              next.complete(FAILED, null, e);
+            }
+          }
+        });
+      }
+    });
+    return next;
+  }
+
+  /**
+   * @param composition invoked with the result once this future succeeds, in the thread that
+   * completes it
+   * @return a future completed as the future returned by the composition
+   */
+  public TaskFuture thenCompose(Composition composition) {
+    return thenCompose(DIRECT, composition);
+  }
+
+  /**
+   * Chains another task, or any other future, to this one.
+   *
+   * @param executor runs the composition
+   * @param composition invoked with the result once this future succeeds
+   * @return a future completed as the future returned by the composition, or with the failure or
+   *         cancellation of this future
+   */
+  public TaskFuture thenCompose(final Executor executor, final Composition composition) {
+    final TaskFuture next = new TaskFuture();
+    addListener(new Runnable() {
+      @Override public void run() {
+        if (mState != SUCCEEDED) {
+          next.completeFrom(TaskFuture.this);
+          return;
+        }
+        next.execute(executor, new Runnable() {
+          @Override public void run() {
+            final TaskFuture composed;
+            try {
+              composed = composition.compose(mResultData);
+            } catch (Exception e) {
+              next.complete(FAILED, null, e);
+              return;
+            }
+            if (composed == null) {
+              next.complete(FAILED, null, new NullPointerException("Composition returned null"));
+              return;
+            }
+            composed.addListener(new Runnable() {
+              @Override public void run() {
+                next.completeFrom(composed);
+              }
+            });
+          }
+        });
+      }
+    });
+    return next;
+  }
+
+  /**
+   * @param futures futures to combine
+   * @return a future that succeeds once all the futures succeed, with their results in order as
+   *         a list of bundles under {@link #RESULTS}; it fails or is cancelled as soon as any of
+   *         them does
+   */
+  public static TaskFuture allOf(final TaskFuture... futures) {
+    final TaskFuture all = new TaskFuture();
+    final AtomicInteger pending = new AtomicInteger(futures.length);
+    if (futures.length == 0) {
+      all.complete(SUCCEEDED, resultsOf(futures), null);
+    }
+    for (final TaskFuture future : futures) {
+      future.addListener(new Runnable() {
+        @Override public void run() {
+          if (future.mState != SUCCEEDED) {
+            all.completeFrom(future);
+          } else if (pending.decrementAndGet() == 0) {
+            all.complete(SUCCEEDED, resultsOf(futures), null);
+          }
+        }
+      });
+    }
+    return all;
+  }
+
+  private static Bundle resultsOf(TaskFuture[] futures) {
+    ArrayList<Bundle> results = new ArrayList<Bundle>(futures.length);
+    for (TaskFuture future : futures) {
+      results.add(future.mResultData);
+    }
+    Bundle resultData = new Bundle();
+    resultData.putParcelableArrayList(RESULTS, results);
+    return resultData;
+  }
+
+  /**
+   * @param futures futures to combine
+   * @return a future completed as the first of the futures that completes
+   */
+  public static TaskFuture anyOf(TaskFuture... futures) {
+    final TaskFuture any = new TaskFuture();
+    for (final TaskFuture future : futures) {
+      future.addListener(new Runnable() {
+        @Override public void run() {
+          any.completeFrom(future);
+        }
+      });
+    }
+    return any;
+  }
+
+  private void addListener(Runnable listener) {
+    synchronized (this) {
+      if (mListeners != null) {
+        mListeners.add(listener);
+        return;
+      }
+    }
+    listener.run();
+  }
+
+  private void execute(Executor executor, Runnable command) {
+    try {
+      executor.execute(command);
+    } catch (RuntimeException e) {
+      complete(FAILED, null, e);
+    }
+  }
+
+  private void completeFrom(TaskFuture other) {
+    complete(other.mState, other.mResultData, other.mFailure);
+  }
+
+  private boolean complete(int state, Bundle resultData, Throwable failure) {
+    List<Runnable> listeners;
+    synchronized (this) {
+      if (mState != PENDING) {
+        return false;
+      }
+      mResultData = resultData;
+      mFailure = failure;
+      mState = state;
+      listeners = mListeners;
+      mListeners = null;
+    }
+    mDone.countDown();
+    for (Runnable listener : listeners) {
+      listener.run();
+    }
+    return true;
+  }
+
+  @Override public String toString() {
+    return "TaskFuture{taskId=" + mBinding.getTaskId() + ", state=" + mState + '}';
+  }
+
+  /** Transforms the result of a future. */
+  public interface Continuation {
+    /**
+     * @param resultData the result of the previous future
+     * @return the result of the next future
+     * @throws Exception to fail the next future
+     */
+    Bundle then(Bundle resultData) throws Exception;
+  }
+
+  /** Chains a future to the result of another. */
+  public interface Composition {
+    /**
+     * @param resultData the result of the previous future
+     * @return the future whose result completes the next future; usually obtained with {@link
+     *         Groundy#future()}
+     * @throws Exception to fail the next future
+     */
+    TaskFuture compose(Bundle resultData) throws Exception;
+  }
+
+  /** Cause of the {@link ExecutionException} thrown when the task fails. */
+  public static class TaskFailedException extends Exception {
+    private final Bundle mResultData;
+
+    public TaskFailedException(Bundle resultData) {
+      super(resultData != null ? resultData.getString(Groundy.CRASH_MESSAGE) : null);
+      mResultData = resultData;
+    }
+
+    /** @return the data of the {@link com.telly.groundy.annotations.OnFailure} callback */
+    public Bundle getResultData() {
+      return mResultData;
+    }
+  }
+}
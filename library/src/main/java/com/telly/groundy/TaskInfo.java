@@ -0,0 +1,94 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.telly.groundy;
+
+import android.os.SystemClock;
+
+/**
+ * Point in time view of a task scheduled in a {@link GroundyService}. Timestamps are in the
+ * {@link SystemClock#elapsedRealtime()} time base.
+ */
+public final class TaskInfo {
+
+  public static enum State {QUEUED, RUNNING}
+
+  private final long mId;
+  private final Class<? extends GroundyTask> mTaskClass;
+  private final int mGroupId;
+  private final long mEnqueuedAt;
+  private final long mStartedAt;
+  private final int mProgress;
+
+  TaskInfo(GroundyTask task) {
+    mId = task.getId();
+    mTaskClass = task.getClass();
+    mGroupId = task.getGroupId();
+    mEnqueuedAt = task.getEnqueuedAt();
+    mStartedAt = task.getStartedAt();
+    mProgress = task.getReportedProgress();
+  }
+
+  public long getId() {
+    return mId;
+  }
+
+  public Class<? extends GroundyTask> getTaskClass() {
+    return mTaskClass;
+  }
+
+  public int getGroupId() {
+    return mGroupId;
+  }
+
+  public State getState() {
+    return mStartedAt == 0 ? State.QUEUED : State.RUNNING;
+  }
+
+  /** @return when the service scheduled the task */
+  public long getEnqueuedAt() {
+    return mEnqueuedAt;
+  }
+
+  /** @return when the task started running, 0 if it is still queued */
+  public long getStartedAt() {
+    return mStartedAt;
+  }
+
+  /** @return time in milliseconds the task waited in the queue, or has waited so far */
+  public long getWaitTime() {
+    long end = mStartedAt == 0 ? SystemClock.elapsedRealtime() : mStartedAt;
+    return end - mEnqueuedAt;
+  }
+
+  /** @return last progress reported by the task, -1 if it did not report any */
+  public int getProgress() {
+    return mProgress;
+  }
+
+  @Override public String toString() {
+    return "TaskInfo{id=" + mId + ", task=" + mTaskClass.getSimpleName() + ", group=" + mGroupId
+        + ", state=" + getState() + ", progress=" + mProgress + '}';
+  }
+}
@@ -0,0 +1,335 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.telly.groundy;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.ResultReceiver;
+
+import java.util.LinkedList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Reactive streams publisher of the callbacks of a task. Obtain it with {@link
+ * Groundy#publisher()} before queueing or executing the task. Requires the reactive-streams
+ * library, which groundy does not bundle.
+ * <p/>
+ * Events are only emitted as requested by the subscriber. The demand is passed back to the task
+ * through the chunks it streams with {@link GroundyTask#emitChunk(String, Bundle)}: the task gets
+ * back the credit of a chunk once it is emitted, so it blocks while {@link
+ * GroundyTask#getStreamCapacity()} chunks wait for demand.
+ * <p/>
+ * Other events are buffered meanwhile, except progress updates: a pending one is replaced by the
+ * next. Since they do not wait for demand, their overflow policy is to fail: if more than {@link
+ * #MAX_PENDING_EVENTS} of them are waiting, the task is cancelled with {@link
+ * GroundyTask#CANCEL_BY_SUBSCRIPTION} and an {@link IllegalStateException} is signaled. Tasks that
+ * produce many results should stream them as chunks instead.
+ * <p/>
+ * A successful result is the last event before completion; failures and cancellations are
+ * signaled as errors right away. Only one subscriber is allowed, and cancelling its subscription
+ * cancels the task.
+ */
+public class TaskPublisher implements Publisher<TaskPublisher.Event> {
+
+  /**
+   * Maximum amount of events other than chunks buffered while the subscriber does not request
+   * them. Chunks are not counted since the task does not send more than its stream capacity.
+   */
+  public static final int MAX_PENDING_EVENTS = 128;
+
+  private final LinkedList<Event> mQueue = new LinkedList<Event>();
+  /** Buffered events counted against {@link #MAX_PENDING_EVENTS}; guarded by mQueue. */
+  private int mPendingEvents;
+  private final AtomicLong mRequested = new AtomicLong();
+  /** Serializes the signals to the subscriber. */
+  private final AtomicInteger mWorkInProgress = new AtomicInteger();
+  private volatile Subscriber<? super Event> mSubscriber;
+  private volatile boolean mDone;
+  private volatile Throwable mError;
+  private volatile boolean mCancelled;
+
+  private final TaskBinding mBinding = new TaskBinding();
+
+  TaskPublisher() {
+  }
+
+  @Override public void subscribe(Subscriber<? super Event> subscriber) {
+    if (subscriber == null) {
+      throw new NullPointerException("Subscriber cannot be null");
+    }
+    boolean first;
+    synchronized (this) {
+      first = mSubscriber == null;
+      if (first) {
+        mSubscriber = subscriber;
+      }
+    }
+    if (first) {
+      subscriber.onSubscribe(new TaskSubscription());
+      // events received before subscribing are waiting for demand
+      drain();
+      return;
+    }
+    subscriber.onSubscribe(new Subscription() {
+      @Override public void request(long n) {
+      }
+
+      @Override public void cancel() {
+      }
+    });
+    subscriber.onError(new IllegalStateException("Only one subscriber is allowed"));
+  }
+
+  /** Receives the callbacks of the task this publisher belongs to. */
+  final CallbacksReceiver.EventSink sink() {
+    return new CallbacksReceiver.EventSink() {
+      @Override public void onCallback(int callbackType, Bundle resultData) {
+        ResultReceiver chunkAck = resultData.getParcelable(Groundy.KEY_CHUNK_ACK);
+        resultData.remove(Groundy.KEY_CHUNK_ACK);
+        if (mDone || mCancelled) {
+          acknowledge(chunkAck);
+          return;
+        }
+        switch (callbackType) {
+          case CallbackTypes.FAILURE:
+            mError = new TaskFuture.TaskFailedException(resultData);
+            mDone = true;
+            break;
+          case CallbackTypes.CANCEL:
+            mError = new CancellationException("Task cancelled");
+            mDone = true;
+            break;
+          default:
+            if (!enqueue(new Event(callbackType, resultData, chunkAck))) {
+              mError = new IllegalStateException("The subscriber did not request the "
+                  + MAX_PENDING_EVENTS + " pending events");
+              mDone = true;
+              // nobody will get the rest of its events
+              mBinding.cancelTask(GroundyTask.CANCEL_BY_SUBSCRIPTION);
+              break;
+            }
+            mDone = callbackType == CallbackTypes.SUCCESS;
+            break;
+        }
+        drain();
+      }
+
+      @Override public boolean holdsChunks() {
+        return true;
+      }
+    };
+  }
+
+  /**
+   * @param context used to cancel the task
+   * @param taskId id of the task
+   * @param serviceClass the service running the task
+   */
+  void bind(Context context, long taskId, Class<? extends GroundyService> serviceClass) {
+    mBinding.bind(context, taskId, serviceClass);
+    if (mCancelled) {
+      // cancelled before it was sent
+      cancelTask();
+    }
+  }
+
+  private void cancelTask() {
+    if (!mDone) {
+      mBinding.cancelTask(GroundyTask.CANCEL_BY_SUBSCRIPTION);
+    }
+  }
+
+  /** @return false if the event was not buffered because too many are pending */
+  private boolean enqueue(Event event) {
+    synchronized (mQueue) {
+      if (event.getCallbackType() == CallbackTypes.PROGRESS && !mQueue.isEmpty()
+          && mQueue.getLast().getCallbackType() == CallbackTypes.PROGRESS) {
+        // nobody asked for the pending one, only the latest progress matters
+        mQueue.removeLast();
+      } else if (event.mChunkAck == null && event.getCallbackType() != CallbackTypes.SUCCESS) {
+        // the result is always kept since it completes the stream anyway
+        if (mPendingEvents >= MAX_PENDING_EVENTS) {
+          return false;
+        }
+        mPendingEvents++;
+      }
+      mQueue.add(event);
+      return true;
+    }
+  }
+
+  private Event poll() {
+    synchronized (mQueue) {
+      Event event = mQueue.poll();
+      if (event != null && event.mChunkAck == null
+          && event.getCallbackType() != CallbackTypes.SUCCESS) {
+        mPendingEvents--;
+      }
+      return event;
+    }
+  }
+
+  /** Gives the task back the credits of the chunks that will never be emitted. */
+  private void discardQueue() {
+    synchronized (mQueue) {
+      for (Event event : mQueue) {
+        acknowledge(event.mChunkAck);
+      }
+      mQueue.clear();
+      mPendingEvents = 0;
+    }
+  }
+
+  private static void acknowledge(ResultReceiver chunkAck) {
+    if (chunkAck != null) {
+      chunkAck.send(0, null);
+    }
+  }
+
+  private boolean isQueueEmpty() {
+    synchronized (mQueue) {
+      return mQueue.isEmpty();
+    }
+  }
+
+  private void drain() {
+    if (mWorkInProgress.getAndIncrement() != 0) {
+      // the thread already draining will see the new state
+      return;
+    }
+
+    int missed = 1;
+    do {
+      Subscriber<? super Event> subscriber = mSubscriber;
+      if (subscriber != null) {
+        long requested = mRequested.get();
+        long emitted = 0;
+        while (emitted != requested && !mCancelled && mError == null) {
+          Event event = poll();
+          if (event == null) {
+            break;
+          }
+          subscriber.onNext(event);
+          // the task can stream another chunk
+          acknowledge(event.mChunkAck);
+          emitted++;
+        }
+
+        if (mCancelled) {
+          return;
+        }
+        if (mDone && (mError != null || isQueueEmpty())) {
+          mCancelled = true;
+          discardQueue();
+          if (mError != null) {
+            subscriber.onError(mError);
+          } else {
+            subscriber.onComplete();
+          }
+          return;
+        }
+        if (emitted != 0 && requested != Long.MAX_VALUE) {
+          mRequested.addAndGet(-emitted);
+        }
+      }
+      missed = mWorkInProgress.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  private final class TaskSubscription implements Subscription {
+    @Override public void request(long n) {
+      if (n <= 0) {
+        mError = new IllegalArgumentException("Requested " + n + " events, it must be positive");
+        mDone = true;
+        drain();
+        return;
+      }
+      long current;
+      long updated;
+      do {
+        current = mRequested.get();
+        updated = current + n;
+        if (updated < 0) {
+          // unbounded
+          updated = Long.MAX_VALUE;
+        }
+      } while (!mRequested.compareAndSet(current, updated));
+      drain();
+    }
+
+    @Override public void cancel() {
+      if (mCancelled) {
+        return;
+      }
+      mCancelled = true;
+      discardQueue();
+      cancelTask();
+    }
+  }
+
+  /** A callback of the task. */
+  public static final class Event {
+    private final int mCallbackType;
+    private final Bundle mData;
+    /** Null unless this is a streamed chunk. */
+    final ResultReceiver mChunkAck;
+
+    Event(int callbackType, Bundle data, ResultReceiver chunkAck) {
+      mCallbackType = callbackType;
+      mData = data;
+      mChunkAck = chunkAck;
+    }
+
+    /** @return one of the {@link CallbackTypes} ids */
+    public int getCallbackType() {
+      return mCallbackType;
+    }
+
+    /** @return the name of the custom callback, or null if this is not a custom callback */
+    public String getCallbackName() {
+      return mCallbackType == CallbackTypes.CALLBACK
+          ? mData.getString(Groundy.KEY_CALLBACK_NAME) : null;
+    }
+
+    /** @return the progress, or 0 if this is not a progress update */
+    public int getProgress() {
+      return mCallbackType == CallbackTypes.PROGRESS ? mData.getInt(Groundy.PROGRESS) : 0;
+    }
+
+    /** @return the data sent by the task */
+    public Bundle getData() {
+      return mData;
+    }
+
+    @Override public String toString() {
+      return "Event{callbackType=" + mCallbackType + ", data=" + mData + '}';
+    }
+  }
+}
@@ -280,7 +280,8 @@ public class TaskResult {
 
   /**
    * Inserts a byte array value into the mapping of this Bundle, replacing any existing value for
-   * the given key.  Either key or value may be null.
+   * the given key.  Either key or value may be null. Arrays bigger than 128 KiB are not parceled:
+   * they are handed over in memory or through a temporary file.
    *
    * @param key a String, or null
    * @param value a byte array object, or null
@@ -167,6 +167,7 @@ public final class DownloadUtils {
     long total = 0;
     int count;
     int fileLength = urlConnection.getContentLength();
+    int lastProgress = -1;
 
     if (fileLength == -1 && listener != null) {
       listener.onProgress(fromUrl, Groundy.NO_SIZE_AVAILABLE);
@@ -181,7 +182,12 @@ public final class DownloadUtils {
       total += count;
       output.write(buffer, 0, count);
       if (listener != null && fileLength > 0) {
-        listener.onProgress(fromUrl, (int) (total * 100 / fileLength));
+        int progress = (int) (total * 100 / fileLength);
+        if (progress != lastProgress) {
+          // only report when the percentage actually changes
+          listener.onProgress(fromUrl, progress);
+          lastProgress = progress;
+        }
       }
     }
     output.close();
@@ -0,0 +1,157 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.telly.groundy;
+
+import android.os.Bundle;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ReplayBufferTest {
+
+  @Before
+  public void clear() {
+    ReplayBuffer.trim(ReplayBuffer.TRIM_MEMORY_COMPLETE);
+  }
+
+  @Test
+  public void keepsOnlyTheLatestProgress() {
+    ReplayBuffer.recordMissed(1, NoopTask.class, CallbackTypes.PROGRESS, progress(10));
+    ReplayBuffer.recordMissed(1, NoopTask.class, CallbackTypes.PROGRESS, progress(20));
+
+    List<ReplayBuffer.Event> missed = ReplayBuffer.takeMissed(1);
+    assertEquals(1, missed.size());
+    assertEquals(20, missed.get(0).resultData.getInt(Groundy.PROGRESS));
+    assertTrue(ReplayBuffer.takeMissed(1).isEmpty());
+  }
+
+  @Test
+  public void terminalCallbackSupersedesProgress() {
+    ReplayBuffer.recordMissed(1, NoopTask.class, CallbackTypes.PROGRESS, progress(10));
+    ReplayBuffer.recordMissed(1, NoopTask.class, CallbackTypes.SUCCESS, new Bundle());
+
+    List<ReplayBuffer.Event> missed = ReplayBuffer.takeMissed(1);
+    assertEquals(1, missed.size());
+    assertEquals(CallbackTypes.SUCCESS, missed.get(0).callbackType);
+  }
+
+  @Test
+  public void ignoresOtherCallbacksAndUnknownTasks() {
+    ReplayBuffer.recordMissed(1, NoopTask.class, CallbackTypes.START, new Bundle());
+    ReplayBuffer.recordMissed(1, NoopTask.class, CallbackTypes.CALLBACK, new Bundle());
+    ReplayBuffer.recordMissed(0, NoopTask.class, CallbackTypes.SUCCESS, new Bundle());
+
+    assertTrue(ReplayBuffer.takeMissed(1).isEmpty());
+    assertTrue(ReplayBuffer.takeMissed(0).isEmpty());
+  }
+
+  @Test
+  public void deliveredTasksAreDropped() {
+    ReplayBuffer.recordMissed(1, NoopTask.class, CallbackTypes.FAILURE, new Bundle());
+    assertSame(NoopTask.class, ReplayBuffer.finishedTaskType(1));
+
+    ReplayBuffer.markDelivered(1);
+    assertNull(ReplayBuffer.finishedTaskType(1));
+    assertTrue(ReplayBuffer.takeMissed(1).isEmpty());
+  }
+
+  @Test
+  public void doesNotKeepOversizedCallbacks() {
+    ReplayBuffer.recordMissed(1, NoopTask.class, CallbackTypes.SUCCESS,
+        payload(ReplayBuffer.MAX_EVENT_BYTES + 1));
+
+    assertTrue(ReplayBuffer.takeMissed(1).isEmpty());
+  }
+
+  @Test
+  public void evictsTheOldestTasksPastMaxTasks() {
+    for (long taskId = 1; taskId <= ReplayBuffer.MAX_TASKS + 1; taskId++) {
+      ReplayBuffer.recordMissed(taskId, NoopTask.class, CallbackTypes.SUCCESS, new Bundle());
+    }
+
+    assertTrue(ReplayBuffer.takeMissed(1).isEmpty());
+    assertEquals(ReplayBuffer.MAX_TASKS, ReplayBuffer.finishedTasks(NoopTask.class).size());
+  }
+
+  @Test
+  public void evictsTheOldestTasksPastMaxBytes() {
+    int eventBytes = ReplayBuffer.MAX_EVENT_BYTES / 2;
+    long tasks = ReplayBuffer.MAX_BYTES / eventBytes + 1;
+    for (long taskId = 1; taskId <= tasks; taskId++) {
+      ReplayBuffer.recordMissed(taskId, NoopTask.class, CallbackTypes.SUCCESS,
+          payload(eventBytes));
+    }
+
+    assertTrue(ReplayBuffer.takeMissed(1).isEmpty());
+    assertEquals(1, ReplayBuffer.takeMissed(tasks).size());
+    assertTrue(ReplayBuffer.finishedTasks(NoopTask.class).size() < tasks - 1);
+  }
+
+  @Test
+  public void bytesOfTakenTasksAreReleased() {
+    int eventBytes = ReplayBuffer.MAX_EVENT_BYTES / 2;
+    long tasks = ReplayBuffer.MAX_BYTES / eventBytes + 1;
+    for (long taskId = 1; taskId <= tasks; taskId++) {
+      ReplayBuffer.recordMissed(taskId, NoopTask.class, CallbackTypes.SUCCESS,
+          payload(eventBytes));
+      // only evicted if the bytes of the payloads taken before were not released
+      ReplayBuffer.recordMissed(taskId + tasks, NoopTask.class, CallbackTypes.SUCCESS,
+          new Bundle());
+      assertEquals(1, ReplayBuffer.takeMissed(taskId).size());
+    }
+
+    assertEquals(tasks, ReplayBuffer.finishedTasks(NoopTask.class).size());
+  }
+
+  private static Bundle progress(int progress) {
+    Bundle resultData = new Bundle();
+    resultData.putInt(Groundy.PROGRESS, progress);
+    return resultData;
+  }
+
+  private static Bundle payload(int bytes) {
+    Bundle resultData = new Bundle();
+    resultData.putByteArray("payload", new byte[bytes]);
+    return resultData;
+  }
+
+  private static class NoopTask extends GroundyTask {
+    @Override protected TaskResult doInBackground() {
+      return succeeded();
+    }
+  }
+}
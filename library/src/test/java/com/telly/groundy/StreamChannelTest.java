@@ -0,0 +1,118 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.telly.groundy;
+
+import android.os.ResultReceiver;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class StreamChannelTest {
+
+  private final GroundyTask mTask = new NoopTask();
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsNonPositiveCapacity() {
+    new StreamChannel(0);
+  }
+
+  @Test
+  public void everyChunkTakesACredit() {
+    StreamChannel channel = new StreamChannel(2);
+    assertTrue(channel.acquire(mTask, false));
+    assertTrue(channel.acquire(mTask, false));
+    assertFalse(channel.acquire(mTask, false));
+  }
+
+  @Test
+  public void creditIsGivenBackOnceAllConsumersAcknowledged() {
+    StreamChannel channel = new StreamChannel(1);
+    assertTrue(channel.acquire(mTask, false));
+    ResultReceiver ack = channel.newAck(2);
+
+    ack.send(0, null);
+    assertFalse(channel.acquire(mTask, false));
+
+    ack.send(0, null);
+    assertTrue(channel.acquire(mTask, false));
+    assertFalse(channel.acquire(mTask, false));
+  }
+
+  @Test
+  public void blockedProducerResumesWhenTheChunkIsAcknowledged() {
+    StreamChannel channel = new StreamChannel(1);
+    assertTrue(channel.acquire(mTask, false));
+    final ResultReceiver ack = channel.newAck(1);
+    new Thread() {
+      @Override public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          return;
+        }
+        ack.send(0, null);
+      }
+    }.start();
+
+    assertTrue(channel.acquire(mTask, true));
+  }
+
+  @Test
+  public void blockedProducerGivesUpWhenTheTaskQuits() throws InterruptedException {
+    StreamChannel channel = new StreamChannel(1);
+    assertTrue(channel.acquire(mTask, false));
+    final CountDownLatch quitting = new CountDownLatch(1);
+    new Thread() {
+      @Override public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          return;
+        }
+        mTask.stopTask(GroundyTask.CANCEL_ALL);
+        quitting.countDown();
+      }
+    }.start();
+
+    assertFalse(channel.acquire(mTask, true));
+    assertTrue(quitting.await(1, TimeUnit.SECONDS));
+  }
+
+  private static class NoopTask extends GroundyTask {
+    @Override protected TaskResult doInBackground() {
+      return succeeded();
+    }
+  }
+}
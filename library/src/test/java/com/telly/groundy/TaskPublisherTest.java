@@ -0,0 +1,242 @@
+/**
+ * Copyright Telly, Inc. and other Groundy contributors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit
+ * persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ * NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.telly.groundy;
+
+import android.os.Bundle;
+import android.os.ResultReceiver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class TaskPublisherTest {
+
+  private TaskPublisher mPublisher;
+  private CallbacksReceiver.EventSink mSink;
+  private RecordingSubscriber mSubscriber;
+
+  @Before
+  public void subscribe() {
+    mPublisher = new TaskPublisher();
+    mSink = mPublisher.sink();
+    mSubscriber = new RecordingSubscriber();
+    mPublisher.subscribe(mSubscriber);
+  }
+
+  @Test
+  public void emitsOnlyRequestedEvents() {
+    mSink.onCallback(CallbackTypes.START, new Bundle());
+    mSink.onCallback(CallbackTypes.CALLBACK, new Bundle());
+    mSink.onCallback(CallbackTypes.CALLBACK, new Bundle());
+    assertEquals(0, mSubscriber.events.size());
+
+    mSubscriber.subscription.request(2);
+    assertEquals(2, mSubscriber.events.size());
+    assertEquals(CallbackTypes.START, mSubscriber.events.get(0).getCallbackType());
+
+    mSubscriber.subscription.request(1);
+    assertEquals(3, mSubscriber.events.size());
+  }
+
+  @Test
+  public void eventsSentBeforeSubscribingWaitForDemand() {
+    TaskPublisher publisher = new TaskPublisher();
+    publisher.sink().onCallback(CallbackTypes.START, new Bundle());
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    publisher.subscribe(subscriber);
+    assertEquals(0, subscriber.events.size());
+
+    subscriber.subscription.request(1);
+    assertEquals(1, subscriber.events.size());
+  }
+
+  @Test
+  public void pendingProgressIsReplacedByTheNext() {
+    mSink.onCallback(CallbackTypes.PROGRESS, progress(10));
+    mSink.onCallback(CallbackTypes.PROGRESS, progress(20));
+
+    mSubscriber.subscription.request(Long.MAX_VALUE);
+    assertEquals(1, mSubscriber.events.size());
+    assertEquals(20, mSubscriber.events.get(0).getProgress());
+  }
+
+  @Test
+  public void completesAfterTheResultIsRequested() {
+    mSink.onCallback(CallbackTypes.SUCCESS, new Bundle());
+    assertFalse(mSubscriber.completed);
+
+    mSubscriber.subscription.request(1);
+    assertEquals(CallbackTypes.SUCCESS, mSubscriber.events.get(0).getCallbackType());
+    assertTrue(mSubscriber.completed);
+    assertNull(mSubscriber.error);
+  }
+
+  @Test
+  public void failuresAreSignaledRightAway() {
+    mSink.onCallback(CallbackTypes.START, new Bundle());
+    mSink.onCallback(CallbackTypes.FAILURE, new Bundle());
+
+    assertEquals(0, mSubscriber.events.size());
+    assertTrue(mSubscriber.error instanceof TaskFuture.TaskFailedException);
+  }
+
+  @Test
+  public void tooManyPendingEventsFail() {
+    for (int i = 0; i <= TaskPublisher.MAX_PENDING_EVENTS; i++) {
+      mSink.onCallback(CallbackTypes.CALLBACK, new Bundle());
+    }
+
+    assertTrue(mSubscriber.error instanceof IllegalStateException);
+  }
+
+  @Test
+  public void nonPositiveRequestsFail() {
+    mSubscriber.subscription.request(0);
+
+    assertTrue(mSubscriber.error instanceof IllegalArgumentException);
+  }
+
+  @Test
+  public void onlyOneSubscriberIsAllowed() {
+    RecordingSubscriber second = new RecordingSubscriber();
+    mPublisher.subscribe(second);
+
+    assertTrue(second.error instanceof IllegalStateException);
+    assertNull(mSubscriber.error);
+  }
+
+  @Test
+  public void chunksAreAcknowledgedOnceRequested() {
+    CountingAck ack = new CountingAck();
+    mSink.onCallback(CallbackTypes.CALLBACK, chunk(ack));
+    mSink.onCallback(CallbackTypes.CALLBACK, chunk(ack));
+    assertEquals(0, ack.count);
+
+    mSubscriber.subscription.request(1);
+    assertEquals(1, ack.count);
+    assertFalse(mSubscriber.events.get(0).getData().containsKey(Groundy.KEY_CHUNK_ACK));
+
+    mSubscriber.subscription.request(1);
+    assertEquals(2, ack.count);
+  }
+
+  @Test
+  public void chunksDoNotCountAsPendingEvents() {
+    CountingAck ack = new CountingAck();
+    for (int i = 0; i <= TaskPublisher.MAX_PENDING_EVENTS; i++) {
+      mSink.onCallback(CallbackTypes.CALLBACK, chunk(ack));
+    }
+
+    assertNull(mSubscriber.error);
+    assertEquals(0, ack.count);
+  }
+
+  @Test
+  public void cancellingAcknowledgesPendingChunksAndStopsEvents() {
+    CountingAck ack = new CountingAck();
+    mSink.onCallback(CallbackTypes.CALLBACK, chunk(ack));
+
+    mSubscriber.subscription.cancel();
+    assertEquals(1, ack.count);
+
+    mSink.onCallback(CallbackTypes.CALLBACK, chunk(ack));
+    assertEquals(2, ack.count);
+    mSubscriber.subscription.request(1);
+    assertEquals(0, mSubscriber.events.size());
+    assertFalse(mSubscriber.completed);
+  }
+
+  @Test
+  public void failingAcknowledgesPendingChunks() {
+    CountingAck ack = new CountingAck();
+    mSink.onCallback(CallbackTypes.CALLBACK, chunk(ack));
+    mSink.onCallback(CallbackTypes.CANCEL, new Bundle());
+
+    assertEquals(1, ack.count);
+    assertTrue(mSubscriber.error instanceof CancellationException);
+  }
+
+  private static Bundle progress(int progress) {
+    Bundle resultData = new Bundle();
+    resultData.putInt(Groundy.PROGRESS, progress);
+    return resultData;
+  }
+
+  private static Bundle chunk(ResultReceiver ack) {
+    Bundle resultData = new Bundle();
+    resultData.putParcelable(Groundy.KEY_CHUNK_ACK, ack);
+    return resultData;
+  }
+
+  private static class CountingAck extends ResultReceiver {
+    int count;
+
+    CountingAck() {
+      super(null);
+    }
+
+    @Override protected void onReceiveResult(int resultCode, Bundle resultData) {
+      count++;
+    }
+  }
+
+  private static class RecordingSubscriber implements Subscriber<TaskPublisher.Event> {
+    final List<TaskPublisher.Event> events = new ArrayList<TaskPublisher.Event>();
+    Subscription subscription;
+    Throwable error;
+    boolean completed;
+
+    @Override public void onSubscribe(Subscription s) {
+      subscription = s;
+    }
+
+    @Override public void onNext(TaskPublisher.Event event) {
+      events.add(event);
+    }
+
+    @Override public void onError(Throwable t) {
+      error = t;
+    }
+
+    @Override public void onComplete() {
+      completed = true;
+    }
+  }
+}